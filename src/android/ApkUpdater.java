@@ -1,37 +1,116 @@
 package de.kolbasa.apkupdater;
 
+import android.net.Uri;
+
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.CordovaPluginPathHandler;
 import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Observer;
 
+import de.kolbasa.apkupdater.assets.WebAssetManager;
+import de.kolbasa.apkupdater.downloader.ConnectionWarmer;
 import de.kolbasa.apkupdater.downloader.Progress;
 import de.kolbasa.apkupdater.exceptions.ActionInProgressException;
 import de.kolbasa.apkupdater.exceptions.DownloadInProgressException;
 import de.kolbasa.apkupdater.exceptions.DownloadNotRunningException;
 import de.kolbasa.apkupdater.tools.ApkInstaller;
+import de.kolbasa.apkupdater.tools.ApkSignature;
 import de.kolbasa.apkupdater.tools.AppData;
+import de.kolbasa.apkupdater.tools.Metrics;
 import de.kolbasa.apkupdater.tools.PermissionManager;
 import de.kolbasa.apkupdater.tools.StackExtractor;
+import de.kolbasa.apkupdater.update.Lifecycle;
+import de.kolbasa.apkupdater.update.PrefetchService;
 import de.kolbasa.apkupdater.update.Update;
 import de.kolbasa.apkupdater.update.UpdateManager;
+import de.kolbasa.apkupdater.update.UpdateQueue;
+import de.kolbasa.apkupdater.update.UpdateTimeline;
 
 public class ApkUpdater extends CordovaPlugin {
 
-    private static final String UPDATE_DIR = "update";
+    private static final String WEB_ASSETS_DIR = "www-update";
+    private static final String QUEUE_DIR = "update-queue";
+    private static final String HOSTS_PREFERENCE = "ApkUpdaterHosts";
+    private static final String CERTIFICATES_PREFERENCE = "ApkUpdaterCertificates";
 
     private UpdateManager updateManager;
+    private WebAssetManager webAssetManager;
+    private UpdateQueue updateQueue;
+
+    // The update manager outlives the page, its observer must not
+    private Observer lifecycleObserver;
+    private boolean interruptedDownloadChecked;
 
     private void init() {
+        Metrics.init(cordova.getContext());
         if (updateManager == null) {
-            File downloadDir = new File(cordova.getContext().getFilesDir(), UPDATE_DIR);
-            updateManager = new UpdateManager(downloadDir, cordova.getContext());
+            updateManager = UpdateManager.getInstance(cordova.getContext());
+        }
+        if (webAssetManager == null) {
+            File webAssetsDir = new File(cordova.getContext().getFilesDir(), WEB_ASSETS_DIR);
+            webAssetManager = new WebAssetManager(webAssetsDir, cordova.getContext());
+        }
+        if (updateQueue == null) {
+            File queueDir = new File(cordova.getContext().getFilesDir(), QUEUE_DIR);
+            updateQueue = new UpdateQueue(queueDir, cordova.getContext());
+        }
+    }
+
+    @Override
+    protected void pluginInitialize() {
+        init();
+        UpdateTimeline.onAppStart(cordova.getContext());
+
+        // Reading the staging area and removing stale asset sets is disk I/O, keep it off the UI thread
+        cordova.getThreadPool().execute(webAssetManager::load);
+        cordova.getThreadPool().execute(this::checkInterruptedDownload);
+
+        String hosts = preferences == null ? null : preferences.getString(HOSTS_PREFERENCE, null);
+        if (hosts != null && !hosts.trim().isEmpty()) {
+            cordova.getThreadPool().execute(() -> ConnectionWarmer.warmUp(Arrays.asList(hosts.split(","))));
+        }
+
+        String certificates = preferences == null ? null : preferences.getString(CERTIFICATES_PREFERENCE, null);
+        if (certificates != null) {
+            ApkSignature.pin(Arrays.asList(certificates.split(",")));
         }
     }
 
+    @Override
+    public void onReset() {
+        removeLifecycleObserver();
+    }
+
+    @Override
+    public void onDestroy() {
+        removeLifecycleObserver();
+    }
+
+    /**
+     * Only called for file:// urls, i.e. with AndroidInsecureFileModeEnabled.
+     */
+    @Override
+    public Uri remapUri(Uri uri) {
+        return webAssetManager == null ? null : webAssetManager.remap(uri);
+    }
+
+    /**
+     * Asked before the assets of the apk are served from https://localhost/.
+     */
+    @Override
+    public CordovaPluginPathHandler getPathHandler() {
+        return new CordovaPluginPathHandler(path -> webAssetManager == null ? null : webAssetManager.serve(path));
+    }
+
     private void checkIfRunning() throws DownloadInProgressException {
         if (updateManager != null && updateManager.isDownloading()) {
             throw new DownloadInProgressException();
@@ -39,7 +118,7 @@ public class ApkUpdater extends CordovaPlugin {
     }
 
     private Update getUpdate() throws Exception {
-        checkIfRunning();
+        // A running download is staged separately, the last verified update stays available
         return updateManager.getUpdate();
     }
 
@@ -58,6 +137,12 @@ public class ApkUpdater extends CordovaPlugin {
         }
     }
 
+    private void pushEvent(CallbackContext callbackContext, JSONObject event) {
+        PluginResult resp = new PluginResult(PluginResult.Status.OK, event);
+        resp.setKeepCallback(true);
+        callbackContext.sendPluginResult(resp);
+    }
+
     private int toBit(boolean bool) {
         return bool ? 1 : 0;
     }
@@ -81,14 +166,123 @@ public class ApkUpdater extends CordovaPlugin {
             String url = parseString(data.getString(0));
             String basicAuth = parseString(data.getString(1));
             String zipPassword = parseString(data.getString(2));
+            String payloadKey = parseString(data.getString(3));
+            String rolloutUrl = parseString(data.getString(4));
+            String digest = parseString(data.getString(5));
+            JSONArray peerList = data.optJSONArray(6);
+
+            List<String> peers = new ArrayList<>();
+            if (peerList != null) {
+                for (int i = 0; i < peerList.length(); i++) {
+                    peers.add(peerList.getString(i));
+                }
+            }
+
+            Update update = updateManager.download(url, basicAuth, zipPassword, payloadKey, rolloutUrl, digest, peers);
+            callbackContext.success(update.toJSON());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void schedulePrefetch(JSONArray data, CallbackContext callbackContext) {
+        try {
+            String url = parseString(data.getString(0));
+            String basicAuth = parseString(data.getString(1));
+            String zipPassword = parseString(data.getString(2));
+            String payloadKey = parseString(data.getString(3));
+            String rolloutUrl = parseString(data.getString(4));
+            JSONObject constraints = data.getJSONObject(5);
+
+            boolean scheduled = PrefetchService.schedule(cordova.getContext(), url, basicAuth, zipPassword,
+                    payloadKey, rolloutUrl, constraints.optBoolean("unmetered", true),
+                    constraints.optBoolean("charging", false), constraints.optBoolean("idle", false));
+            callbackContext.success(toBit(scheduled));
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void cancelPrefetch(CallbackContext callbackContext) {
+        try {
+            PrefetchService.cancel(cordova.getContext());
+            callbackContext.success();
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void getInterruptedDownload(CallbackContext callbackContext) {
+        try {
+            checkIfRunning();
+            callbackContext.success(updateManager.getInterruptedDownload().toJSON());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void resumeDownload(JSONArray data, CallbackContext callbackContext) {
+        try {
+            checkIfRunning();
+
+            String basicAuth = parseString(data.getString(0));
+            String zipPassword = parseString(data.getString(1));
+            String payloadKey = parseString(data.getString(2));
+
+            Update update = updateManager.resume(basicAuth, zipPassword, payloadKey);
+            callbackContext.success(update.toJSON());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void importUpdate(JSONArray data, CallbackContext callbackContext) {
+        try {
+            checkIfRunning();
+
+            Uri uri = Uri.parse(data.getString(0));
+            String zipPassword = parseString(data.getString(1));
+            String digest = parseString(data.getString(2));
 
-            Update update = updateManager.download(url, basicAuth, zipPassword);
+            Update update = updateManager.importUpdate(uri, zipPassword, digest);
             callbackContext.success(update.toJSON());
         } catch (Exception e) {
             callbackContext.error(StackExtractor.format(e));
         }
     }
 
+    private void configure(JSONArray data, CallbackContext callbackContext) {
+        try {
+            JSONObject options = data.getJSONObject(0);
+
+            JSONArray hosts = options.optJSONArray("hosts");
+            if (hosts != null) {
+                List<String> list = new ArrayList<>();
+                for (int i = 0; i < hosts.length(); i++) {
+                    list.add(hosts.getString(i));
+                }
+                ConnectionWarmer.warmUp(list);
+            }
+
+            JSONArray certificates = options.optJSONArray("certificates");
+            if (certificates != null) {
+                List<String> list = new ArrayList<>();
+                for (int i = 0; i < certificates.length(); i++) {
+                    list.add(certificates.getString(i));
+                }
+                ApkSignature.pin(list);
+            }
+
+            if (options.has("peerMode")) {
+                updateManager.setPeerMode(options.getBoolean("peerMode"), options.optInt("peerPort", 0));
+            }
+
+            callbackContext.success();
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
     private void addProgressObserver(CallbackContext callbackContext) {
         try {
             updateManager.addDownloadObserver((o, arg) -> pushProgressEvent(callbackContext, (Progress) arg));
@@ -105,6 +299,35 @@ public class ApkUpdater extends CordovaPlugin {
         }
     }
 
+    private synchronized void removeLifecycleObserver() {
+        if (lifecycleObserver != null) {
+            updateManager.removeLifecycleObserver(lifecycleObserver);
+            lifecycleObserver = null;
+        }
+    }
+
+    /**
+     * Looks for a download that was interrupted by the end of the app. An observer that registers
+     * afterwards is told on registration, one that was faster is told here.
+     */
+    private synchronized void checkInterruptedDownload() {
+        interruptedDownloadChecked = true;
+        updateManager.announceInterruptedDownload();
+    }
+
+    private synchronized void addLifecycleObserver(CallbackContext callbackContext) {
+        try {
+            removeLifecycleObserver();
+            lifecycleObserver = (o, arg) -> pushEvent(callbackContext, (JSONObject) arg);
+            updateManager.addLifecycleObserver(lifecycleObserver);
+            if (interruptedDownloadChecked) {
+                updateManager.announceInterruptedDownload();
+            }
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
     private void stop(CallbackContext callbackContext) {
         try {
             if (updateManager.isDownloading()) {
@@ -117,6 +340,29 @@ public class ApkUpdater extends CordovaPlugin {
         }
     }
 
+    private void pause(CallbackContext callbackContext) {
+        try {
+            // Resolved once the transfer has stopped and the progress is saved
+            updateManager.pause(() -> callbackContext.success());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void resume(JSONArray data, CallbackContext callbackContext) {
+        try {
+            checkIfRunning();
+
+            String basicAuth = parseString(data.getString(0));
+            String zipPassword = parseString(data.getString(1));
+            String payloadKey = parseString(data.getString(2));
+
+            callbackContext.success(updateManager.resumePaused(basicAuth, zipPassword, payloadKey).toJSON());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
     private void getDownloadedUpdate(CallbackContext callbackContext) {
         try {
             callbackContext.success(getUpdate().toJSON());
@@ -134,6 +380,102 @@ public class ApkUpdater extends CordovaPlugin {
         }
     }
 
+    private void downloadWebAssets(JSONArray data, CallbackContext callbackContext) {
+        try {
+            String url = parseString(data.getString(0));
+            String basicAuth = parseString(data.getString(1));
+
+            callbackContext.success(webAssetManager.download(url, basicAuth));
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void getWebAssets(CallbackContext callbackContext) {
+        try {
+            callbackContext.success(webAssetManager.getActive());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void resetWebAssets(CallbackContext callbackContext) {
+        try {
+            webAssetManager.reset();
+            callbackContext.success();
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void getUpdateTimeline(CallbackContext callbackContext) {
+        try {
+            callbackContext.success(UpdateTimeline.toJSON(cordova.getContext()));
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void getMetrics(CallbackContext callbackContext) {
+        try {
+            callbackContext.success(Metrics.toJSON());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void resetMetrics(CallbackContext callbackContext) {
+        try {
+            Metrics.reset();
+            callbackContext.success();
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void downloadQueue(JSONArray data, CallbackContext callbackContext) {
+        try {
+            callbackContext.success(updateQueue.download(data.getJSONArray(0), data.getInt(1)));
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void addQueueObserver(CallbackContext callbackContext) {
+        try {
+            // One observer per download, like the progress observers
+            updateQueue.deleteObservers();
+            updateQueue.addObserver((o, arg) -> pushEvent(callbackContext, (JSONObject) arg));
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void getQueue(CallbackContext callbackContext) {
+        try {
+            callbackContext.success(updateQueue.toJSON());
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void installQueue(JSONArray data, CallbackContext callbackContext) {
+        try {
+            callbackContext.success(updateQueue.install(parseString(data.getString(0))));
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
+    private void resetQueue(CallbackContext callbackContext) {
+        try {
+            updateQueue.reset();
+            callbackContext.success();
+        } catch (Exception e) {
+            callbackContext.error(StackExtractor.format(e));
+        }
+    }
+
     private CallbackContext cbcInstallSettings;
 
     @Override
@@ -166,10 +508,16 @@ public class ApkUpdater extends CordovaPlugin {
     }
 
     private void install(CallbackContext callbackContext) {
+        Lifecycle.Span span = updateManager.getLifecycle().begin(Lifecycle.INSTALL, null);
         try {
+            UpdateTimeline.installStarted(cordova.getContext(), UpdateTimeline.INTENT_INSTALL);
             ApkInstaller.install(cordova.getContext(), getUpdate().getInstallFile());
+            span.end();
             callbackContext.success();
         } catch (Exception e) {
+            span.fail(e);
+            Metrics.recordFailure(e);
+            Metrics.save();
             callbackContext.error(StackExtractor.format(e));
         }
     }
@@ -191,10 +539,16 @@ public class ApkUpdater extends CordovaPlugin {
     }
 
     private void rootInstall(CallbackContext callbackContext) {
+        Lifecycle.Span span = updateManager.getLifecycle().begin(Lifecycle.INSTALL, null);
         try {
+            UpdateTimeline.installStarted(cordova.getContext(), UpdateTimeline.ROOT_INSTALL);
             ApkInstaller.rootInstall(cordova.getContext(), getUpdate().getInstallFile());
+            span.end();
             callbackContext.success();
         } catch (Exception e) {
+            span.fail(e);
+            Metrics.recordFailure(e);
+            Metrics.save();
             callbackContext.error(StackExtractor.format(e));
         }
     }
@@ -208,10 +562,16 @@ public class ApkUpdater extends CordovaPlugin {
     }
 
     private void ownerInstall(CallbackContext callbackContext) {
+        Lifecycle.Span span = updateManager.getLifecycle().begin(Lifecycle.INSTALL, null);
         try {
+            UpdateTimeline.installStarted(cordova.getContext(), UpdateTimeline.OWNER_INSTALL);
             ApkInstaller.ownerInstall(cordova.getContext(), getUpdate().getInstallFile());
+            span.end();
             callbackContext.success();
         } catch (Exception e) {
+            span.fail(e);
+            Metrics.recordFailure(e);
+            Metrics.save();
             callbackContext.error(StackExtractor.format(e));
         }
     }
@@ -224,24 +584,84 @@ public class ApkUpdater extends CordovaPlugin {
             case "getInstalledVersion":
                 cordova.getThreadPool().execute(() -> getInstalledVersion(callbackContext));
                 break;
+            case "configure":
+                cordova.getThreadPool().execute(() -> configure(data, callbackContext));
+                break;
             case "download":
                 cordova.getThreadPool().execute(() -> download(data, callbackContext));
                 break;
+            case "schedulePrefetch":
+                cordova.getThreadPool().execute(() -> schedulePrefetch(data, callbackContext));
+                break;
+            case "cancelPrefetch":
+                cordova.getThreadPool().execute(() -> cancelPrefetch(callbackContext));
+                break;
+            case "getInterruptedDownload":
+                cordova.getThreadPool().execute(() -> getInterruptedDownload(callbackContext));
+                break;
+            case "resumeDownload":
+                cordova.getThreadPool().execute(() -> resumeDownload(data, callbackContext));
+                break;
+            case "importUpdate":
+                cordova.getThreadPool().execute(() -> importUpdate(data, callbackContext));
+                break;
             case "addProgressObserver":
                 cordova.getThreadPool().execute(() -> addProgressObserver(callbackContext));
                 break;
             case "addUnzipObserver":
                 cordova.getThreadPool().execute(() -> addUnzipObserver(callbackContext));
                 break;
+            case "addLifecycleObserver":
+                cordova.getThreadPool().execute(() -> addLifecycleObserver(callbackContext));
+                break;
             case "stop":
                 cordova.getThreadPool().execute(() -> stop(callbackContext));
                 break;
+            case "pause":
+                cordova.getThreadPool().execute(() -> pause(callbackContext));
+                break;
+            case "resume":
+                cordova.getThreadPool().execute(() -> resume(data, callbackContext));
+                break;
             case "getDownloadedUpdate":
                 cordova.getThreadPool().execute(() -> getDownloadedUpdate(callbackContext));
                 break;
             case "reset":
                 cordova.getThreadPool().execute(() -> reset(callbackContext));
                 break;
+            case "downloadWebAssets":
+                cordova.getThreadPool().execute(() -> downloadWebAssets(data, callbackContext));
+                break;
+            case "getWebAssets":
+                cordova.getThreadPool().execute(() -> getWebAssets(callbackContext));
+                break;
+            case "resetWebAssets":
+                cordova.getThreadPool().execute(() -> resetWebAssets(callbackContext));
+                break;
+            case "getUpdateTimeline":
+                cordova.getThreadPool().execute(() -> getUpdateTimeline(callbackContext));
+                break;
+            case "getMetrics":
+                cordova.getThreadPool().execute(() -> getMetrics(callbackContext));
+                break;
+            case "resetMetrics":
+                cordova.getThreadPool().execute(() -> resetMetrics(callbackContext));
+                break;
+            case "downloadQueue":
+                cordova.getThreadPool().execute(() -> downloadQueue(data, callbackContext));
+                break;
+            case "addQueueObserver":
+                cordova.getThreadPool().execute(() -> addQueueObserver(callbackContext));
+                break;
+            case "getQueue":
+                cordova.getThreadPool().execute(() -> getQueue(callbackContext));
+                break;
+            case "installQueue":
+                cordova.getThreadPool().execute(() -> installQueue(data, callbackContext));
+                break;
+            case "resetQueue":
+                cordova.getThreadPool().execute(() -> resetQueue(callbackContext));
+                break;
             case "canRequestPackageInstalls":
                 cordova.getThreadPool().execute(() -> canRequestPackageInstalls(callbackContext));
                 break;
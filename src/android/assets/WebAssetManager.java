@@ -0,0 +1,444 @@
+package de.kolbasa.apkupdater.assets;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Base64;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.kolbasa.apkupdater.exceptions.ChecksumMismatchException;
+import de.kolbasa.apkupdater.exceptions.DownloadFailedException;
+import de.kolbasa.apkupdater.tools.AppData;
+import de.kolbasa.apkupdater.tools.FileTools;
+import de.kolbasa.apkupdater.update.StagingArea;
+
+/**
+ * Incremental updates of the web assets (www) without a new apk.
+ * <p>
+ * The server publishes a manifest: { "version": "...", "files": { "js/app.js": "sha256", ... } }.
+ * Files are resolved relative to the manifest url. Only files that differ from the active
+ * asset set are downloaded. Each asset set is staged in its own generation, files that are
+ * identical to the ones in the apk are not stored at all and are served from the apk. Files of the apk
+ * that are missing in the manifest are recorded as removed and answered with a 404.
+ */
+public class WebAssetManager {
+
+    private static final String MANIFEST = "manifest.json";
+    private static final String INDEX = "index.html";
+    private static final String ASSET_PREFIX = "/android_asset/www/";
+    private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+    private static final String REMOVED = "removed";
+
+    private final Context context;
+    private final StagingArea stagingArea;
+
+    /**
+     * A committed asset set. The removed files are kept together with the directory, so that a request
+     * never sees the directory of one set and the removals of another.
+     */
+    private static class AssetSet {
+        final File directory;
+        final Set<String> removed;
+
+        AssetSet(File directory, Set<String> removed) {
+            this.directory = directory;
+            this.removed = removed;
+        }
+    }
+
+    private volatile AssetSet active;
+    private boolean loaded;
+
+    public WebAssetManager(File directory, Context context) {
+        this.context = context;
+        this.stagingArea = new StagingArea(directory);
+    }
+
+    /**
+     * Reads the active asset set from disk. The plugin calls this on a background thread at startup,
+     * everything else loads it on demand.
+     */
+    public synchronized void load() {
+        if (!loaded) {
+            activate();
+        }
+    }
+
+    private int getAppVersionCode() {
+        try {
+            return AppData.getPackageInfo(context).getAppVersionCode();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static JSONObject readManifest(File generation) {
+        if (generation == null) {
+            return null;
+        }
+        try {
+            return new JSONObject(FileTools.read(new File(generation, MANIFEST)));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Switches to the newest committed asset set. Asset sets of a different apk version are discarded,
+     * the apk always ships newer assets than the ones staged for its predecessor.
+     * <p>
+     * Older asset sets are only removed here: until the page is reloaded, it is still served from the
+     * previous set, even if a newer one has been committed in the meantime.
+     */
+    private synchronized void activate() {
+        File previous = getActiveDirectory();
+        File current = stagingArea.getCurrent();
+        JSONObject manifest = readManifest(current);
+        if (manifest != null && manifest.optInt("appVersionCode", -1) == getAppVersionCode()) {
+            Set<String> removed = new HashSet<>();
+            JSONArray paths = manifest.optJSONArray(REMOVED);
+            for (int i = 0; paths != null && i < paths.length(); i++) {
+                removed.add(paths.optString(i));
+            }
+            active = new AssetSet(current, Collections.unmodifiableSet(removed));
+            if (!loaded || !current.equals(previous)) {
+                stagingArea.collectGarbage();
+            }
+        } else {
+            active = null;
+            if (current != null) {
+                stagingArea.clear();
+            }
+        }
+        loaded = true;
+    }
+
+    private File getActiveDirectory() {
+        AssetSet assetSet = active;
+        return assetSet == null ? null : assetSet.directory;
+    }
+
+    /**
+     * @param path Relative to the www folder
+     * @return The asset of the active set, a file that does not exist if the update removed it,
+     * or null if the asset from the apk should be used.
+     */
+    private File resolve(String path) {
+        if (path.equals(INDEX)) {
+            // The page is (re)loaded, this is the point where a new asset set can be used safely
+            activate();
+        } else {
+            load();
+        }
+
+        AssetSet assetSet = active;
+        if (assetSet == null) {
+            return null;
+        }
+        try {
+            checkPath(path);
+        } catch (IOException e) {
+            return null;
+        }
+
+        File file = new File(assetSet.directory, path);
+        return file.isFile() || assetSet.removed.contains(path) ? file : null;
+    }
+
+    /**
+     * For file:///android_asset/www/ urls (cordova-android in file mode).
+     *
+     * @return A file uri of the updated asset or null, if the asset from the apk should be used.
+     * Cordova answers the uri of a removed asset with a 404, as the file does not exist.
+     */
+    public Uri remap(Uri uri) {
+        if (!"file".equals(uri.getScheme()) || uri.getPath() == null || !uri.getPath().startsWith(ASSET_PREFIX)) {
+            return null;
+        }
+        File file = resolve(uri.getPath().substring(ASSET_PREFIX.length()));
+        return file == null ? null : Uri.fromFile(file);
+    }
+
+    /**
+     * For the WebViewAssetLoader of cordova-android 10+, which serves the app from https://localhost/.
+     *
+     * @param path Relative to the www folder, empty for the start page
+     * @return The updated asset, a 404 for a removed asset or null, if the asset from the apk should be used.
+     */
+    public WebResourceResponse serve(String path) {
+        File file = resolve(path.isEmpty() ? INDEX : path);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new WebResourceResponse(getMimeType(path), null, new FileInputStream(file));
+        } catch (FileNotFoundException e) {
+            return new WebResourceResponse("text/plain", "UTF-8", 404, "Not Found", null, null);
+        }
+    }
+
+    /**
+     * The same types as Cordova uses for the assets of the apk.
+     */
+    private static String getMimeType(String path) {
+        String extension = MimeTypeMap.getFileExtensionFromUrl(path);
+        if (path.isEmpty() || extension == null || extension.isEmpty()) {
+            return "text/html";
+        }
+        if (path.endsWith(".js") || path.endsWith(".mjs")) {
+            return "application/javascript";
+        }
+        if (path.endsWith(".wasm")) {
+            return "application/wasm";
+        }
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+    }
+
+    public JSONObject getActive() throws JSONException {
+        load();
+        File directory = getActiveDirectory();
+        JSONObject manifest = readManifest(directory);
+        JSONObject info = new JSONObject();
+        info.put("version", manifest == null ? null : manifest.optString("version", null));
+        info.put("path", directory == null ? null : directory.getPath());
+        return info;
+    }
+
+    public void reset() {
+        stagingArea.clear();
+        activate();
+    }
+
+    private static HttpURLConnection connect(String url, String basicAuth) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setUseCaches(false);
+        connection.setAllowUserInteraction(false);
+        if (basicAuth != null) {
+            String auth = new String(Base64.encode(basicAuth.getBytes(), Base64.NO_WRAP));
+            connection.setRequestProperty("Authorization", "Basic " + auth);
+        }
+        connection.connect();
+        int responseCode = connection.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("{ response: { message: '" + connection.getResponseMessage()
+                    + "', code: " + responseCode + " }, url: '" + url + "' }");
+        }
+        return connection;
+    }
+
+    private static String checkPath(String path) throws IOException {
+        if (path.isEmpty() || path.startsWith("/") || path.contains("\\")
+                || ("/" + path + "/").contains("/../") || path.equals(MANIFEST)) {
+            throw new IOException("Illegal asset path: " + path);
+        }
+        return path;
+    }
+
+    private String getBundledHash(String path) {
+        try (InputStream in = context.getAssets().open("www/" + path)) {
+            return FileTools.sha256(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Added by cordova-android when the apk is built. Manifests generated from the www folder of the
+     * project do not contain them, so they are never treated as removed.
+     */
+    private static boolean isPlatformFile(String path) {
+        return path.equals("cordova.js") || path.equals("cordova_plugins.js") || path.startsWith("plugins/");
+    }
+
+    private void listBundled(String dir, List<String> paths) throws IOException {
+        String[] names = context.getAssets().list(dir.isEmpty() ? "www" : "www/" + dir);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            String path = dir.isEmpty() ? name : dir + "/" + name;
+            String[] children = context.getAssets().list("www/" + path);
+            if (children == null || children.length == 0) {
+                paths.add(path);
+            } else {
+                listBundled(path, paths);
+            }
+        }
+    }
+
+    private static long downloadAsset(String url, String basicAuth, File target, String hash)
+            throws IOException, ChecksumMismatchException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) {
+            // noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+
+        File tmp = new File(target.getPath() + ".tmp");
+        HttpURLConnection connection = connect(url, basicAuth);
+        long bytes = 0;
+        MessageDigest digest = FileTools.sha256();
+        try (InputStream in = connection.getInputStream(); OutputStream out = new FileOutputStream(tmp)) {
+            byte[] buffer = new byte[16 * 1024];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, len);
+                out.write(buffer, 0, len);
+                bytes += len;
+            }
+        } finally {
+            connection.disconnect();
+        }
+
+        if (!FileTools.toHex(digest.digest()).equalsIgnoreCase(hash)) {
+            // noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new ChecksumMismatchException(target.getName());
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Could not rename " + tmp.getName());
+        }
+        return bytes;
+    }
+
+    public JSONObject download(String manifestUrl, String basicAuth) throws IOException, JSONException,
+            DownloadFailedException, ChecksumMismatchException {
+
+        load();
+
+        JSONObject manifest;
+        HttpURLConnection connection = null;
+        try {
+            connection = connect(manifestUrl, basicAuth);
+            try (InputStream in = connection.getInputStream()) {
+                manifest = new JSONObject(new String(readAll(in), "UTF-8"));
+            }
+        } catch (IOException e) {
+            throw new DownloadFailedException(e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+
+        String baseUrl = manifestUrl.substring(0, manifestUrl.lastIndexOf('/') + 1);
+        JSONObject files = manifest.getJSONObject("files");
+
+        File current = getActiveDirectory();
+        JSONObject currentManifest = readManifest(current);
+        JSONObject currentFiles = currentManifest == null ? new JSONObject() : currentManifest.getJSONObject("files");
+
+        File generation = stagingArea.createGeneration();
+        try {
+            List<String> changed = new ArrayList<>();
+            int reused = 0;
+
+            Iterator<String> paths = files.keys();
+            while (paths.hasNext()) {
+                String path = checkPath(paths.next());
+                String hash = files.getString(path);
+
+                if (hash.equalsIgnoreCase(currentFiles.optString(path, ""))
+                        && new File(current, path).isFile()) {
+                    FileTools.link(new File(current, path), new File(generation, path));
+                    reused++;
+                } else if (!hash.equalsIgnoreCase(String.valueOf(getBundledHash(path)))) {
+                    changed.add(path);
+                }
+            }
+
+            AtomicLong bytes = new AtomicLong();
+            ExecutorService executor = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS);
+            try {
+                List<Future<Void>> tasks = new ArrayList<>();
+                for (String path : changed) {
+                    tasks.add(executor.submit(() -> {
+                        bytes.addAndGet(downloadAsset(baseUrl + path, basicAuth,
+                                new File(generation, path), files.getString(path)));
+                        return null;
+                    }));
+                }
+                for (Future<Void> task : tasks) {
+                    task.get();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof ChecksumMismatchException) {
+                    throw (ChecksumMismatchException) cause;
+                }
+                throw new DownloadFailedException(cause instanceof Exception ? (Exception) cause : e);
+            } catch (InterruptedException e) {
+                throw new DownloadFailedException(e);
+            } finally {
+                executor.shutdownNow();
+            }
+
+            // Otherwise the file from the apk would still be served
+            List<String> bundled = new ArrayList<>();
+            listBundled("", bundled);
+            JSONArray removed = new JSONArray();
+            for (String path : bundled) {
+                if (!files.has(path) && !isPlatformFile(path) && !path.equals(MANIFEST)) {
+                    removed.put(path);
+                }
+            }
+            manifest.put(REMOVED, removed);
+
+            manifest.put("appVersionCode", getAppVersionCode());
+            FileTools.writeAtomically(new File(generation, MANIFEST), manifest.toString());
+            // Becomes active with the next page load, see activate()
+            stagingArea.commit(generation);
+
+            JSONObject result = new JSONObject();
+            result.put("version", manifest.optString("version", null));
+            result.put("files", files.length());
+            result.put("downloaded", changed.size());
+            result.put("reused", reused);
+            result.put("bytes", bytes.get());
+            return result;
+        } catch (Exception e) {
+            stagingArea.discard(generation);
+            throw e;
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16 * 1024];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+}
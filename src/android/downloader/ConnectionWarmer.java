@@ -0,0 +1,111 @@
+package de.kolbasa.apkupdater.downloader;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the update hosts and opens keep-alive connections to them in advance,
+ * so that the first download does not pay for DNS, TCP and TLS.
+ * The connections end up in the connection pool of HttpURLConnection and are reused from there.
+ */
+public class ConnectionWarmer {
+
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Idle connections are evicted from the pool of HttpURLConnection after 5 minutes. After that, the next
+     * connection is cold again and an older sample says nothing about the time a warm-up saves.
+     */
+    private static final long KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
+
+    private static final Map<String, Sample> coldConnectMillis = new ConcurrentHashMap<>();
+
+    private static class Sample {
+        private final long millis;
+        private final long time;
+
+        private Sample(long millis, long time) {
+            this.millis = millis;
+            this.time = time;
+        }
+
+        private boolean isFresh(long now) {
+            return now - time < KEEP_ALIVE_MILLIS;
+        }
+    }
+
+    private static URL toUrl(String host) throws Exception {
+        String url = host.contains("://") ? host : "https://" + host;
+        return new URL(new URL(url), "/");
+    }
+
+    private static String getKey(URL url) {
+        return url.getProtocol() + "://" + url.getAuthority();
+    }
+
+    public static void warmUp(String host) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = toUrl(host.trim());
+            String key = getKey(url);
+            long start = System.currentTimeMillis();
+
+            // A host that was warmed up recently still has a pooled connection,
+            // timing it again would replace the cold sample with a warm one
+            Sample sample = coldConnectMillis.get(key);
+            boolean cold = sample == null || !sample.isFresh(start);
+
+            // noinspection ResultOfMethodCallIgnored
+            InetAddress.getAllByName(url.getHost());
+
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            int responseCode = connection.getResponseCode();
+
+            // The connection only goes back to the pool once the response has been consumed
+            InputStream in = responseCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                in.close();
+            }
+
+            long now = System.currentTimeMillis();
+            coldConnectMillis.put(key, cold ? new Sample(now - start, now) : new Sample(sample.millis, now));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // No disconnect(), that would close the socket instead of returning it to the pool
+    }
+
+    public static void warmUp(Iterable<String> hosts) {
+        for (String host : hosts) {
+            if (host != null && !host.trim().isEmpty()) {
+                warmUp(host);
+            }
+        }
+    }
+
+    /**
+     * @return How long a cold connection to this host took during the warm-up or -1 if it was not warmed up
+     * recently enough for the pooled connection to still be there.
+     */
+    public static long getColdConnectMillis(URL url) {
+        Sample sample = coldConnectMillis.get(getKey(url));
+        return sample == null || !sample.isFresh(System.currentTimeMillis()) ? -1 : sample.millis;
+    }
+
+    /**
+     * @param connectMillis How long the connection to this host took
+     * @return The time saved compared to the cold connection of the warm-up, never negative, or -1 if unknown.
+     */
+    public static long getSavedMillis(URL url, long connectMillis) {
+        long coldMillis = getColdConnectMillis(url);
+        return coldMillis < 0 ? -1 : Math.max(0, coldMillis - connectMillis);
+    }
+
+}
@@ -0,0 +1,286 @@
+package de.kolbasa.apkupdater.downloader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.kolbasa.apkupdater.tools.FileTools;
+
+/**
+ * Small on-disk record of a running download. It is rewritten atomically at safe points,
+ * so that a download can be resumed after the process has been killed.
+ */
+public class DownloadJournal {
+
+    private static final String FILE_NAME = "download.journal";
+    private static final String PART_SUFFIX = ".part";
+
+    private final File file;
+
+    private String url;
+    private String fileName;
+    private String eTag;
+    private String lastModified;
+    private long bytes = -1;
+    private String digest;
+    private final List<long[]> segments = new ArrayList<>();
+    private JSONObject decryptorState;
+
+    private DownloadJournal(File file) {
+        this.file = file;
+    }
+
+    public static DownloadJournal load(File dir) {
+        DownloadJournal journal = new DownloadJournal(new File(dir, FILE_NAME));
+        if (!journal.file.exists()) {
+            return journal;
+        }
+        try {
+            JSONObject json = new JSONObject(FileTools.read(journal.file));
+            journal.url = json.getString("url");
+            journal.fileName = json.getString("name");
+            journal.eTag = json.optString("eTag", null);
+            journal.lastModified = json.optString("lastModified", null);
+            journal.bytes = json.optLong("bytes", -1);
+            journal.digest = json.optString("digest", null);
+            JSONArray segments = json.getJSONArray("segments");
+            for (int i = 0; i < segments.length(); i++) {
+                JSONArray segment = segments.getJSONArray(i);
+                journal.segments.add(new long[]{segment.getLong(0), segment.getLong(1)});
+            }
+            journal.coalesce();
+            journal.decryptorState = json.optJSONObject("decryptor");
+        } catch (Exception e) {
+            // A corrupt journal is worth less than a fresh download
+            journal.clear();
+        }
+        return journal;
+    }
+
+    public boolean exists() {
+        return url != null && fileName != null;
+    }
+
+    public boolean isFor(String url) {
+        return exists() && this.url.equals(url);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return The expected SHA-256 of the file or null, the complete file is checked against it.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * @return The state of the {@link PayloadDecryptor} at the last safe point or null.
+     */
+    public JSONObject getDecryptorState() {
+        return decryptorState;
+    }
+
+    public File getPartFile() {
+        return new File(file.getParentFile(), fileName + PART_SUFFIX);
+    }
+
+    /**
+     * Number of bytes that have been written and synced without a gap, starting at offset 0.
+     */
+    public long getBytesCommitted() {
+        if (segments.isEmpty() || segments.get(0)[0] > 0) {
+            return 0;
+        }
+        return segments.get(0)[1];
+    }
+
+    /**
+     * @return The start of the first committed range behind offset or -1. The bytes in between are missing,
+     * e.g. because peers delivered later parts of the file first.
+     */
+    public long getNextCommitted(long offset) {
+        for (long[] segment : segments) {
+            if (segment[0] > offset) {
+                return segment[0];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Number of bytes that have been synced, gaps not counted.
+     */
+    public long getCommittedLength() {
+        long length = 0;
+        for (long[] segment : segments) {
+            length += segment[1] - segment[0];
+        }
+        return length;
+    }
+
+    /**
+     * Number of downloaded bytes behind the last safe point. For encrypted payloads this
+     * differs from {@link #getBytesCommitted()}, which counts the decrypted bytes.
+     */
+    public long getSourceBytesCommitted() {
+        if (decryptorState != null) {
+            return decryptorState.optLong("input", 0);
+        }
+        return getBytesCommitted();
+    }
+
+    /**
+     * @return true if the whole range has been synced to disk, e.g. by a {@link PeerDownloader}.
+     */
+    public boolean isCommitted(long from, long to) {
+        for (long[] segment : segments) {
+            if (segment[0] <= from && segment[1] >= to) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void start(String url, String fileName, String eTag, String lastModified, long bytes, String digest) {
+        this.url = url;
+        this.fileName = fileName;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.bytes = bytes;
+        this.digest = digest;
+        this.segments.clear();
+        this.decryptorState = null;
+    }
+
+    /**
+     * Records that the given range of the part file has been synced to disk.
+     */
+    public void commit(long from, long to) throws IOException {
+        commit(from, to, null);
+    }
+
+    /**
+     * Records that the given range of the part file has been synced to disk,
+     * together with the decryptor state that produced it.
+     */
+    public void commit(long from, long to, JSONObject decryptorState) throws IOException {
+        this.decryptorState = decryptorState;
+        segments.add(new long[]{from, to});
+        coalesce();
+        save();
+    }
+
+    /**
+     * Keeps the segments sorted and merges overlapping or adjacent ones.
+     */
+    private void coalesce() {
+        Collections.sort(segments, (a, b) -> Long.compare(a[0], b[0]));
+        int i = 1;
+        while (i < segments.size()) {
+            long[] previous = segments.get(i - 1);
+            long[] segment = segments.get(i);
+            if (segment[0] <= previous[1]) {
+                previous[1] = Math.max(previous[1], segment[1]);
+                segments.remove(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * Forgets everything behind offset, after the part file has been truncated there.
+     */
+    public void truncate(long offset) throws IOException {
+        boolean changed = false;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            long[] segment = segments.get(i);
+            if (segment[1] > offset) {
+                changed = true;
+                if (segment[0] >= offset) {
+                    segments.remove(i);
+                } else {
+                    segment[1] = offset;
+                }
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private void save() throws IOException {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("url", url);
+            json.put("name", fileName);
+            json.put("eTag", eTag);
+            json.put("lastModified", lastModified);
+            json.put("bytes", bytes);
+            json.put("digest", digest);
+            JSONArray segments = new JSONArray();
+            for (long[] segment : this.segments) {
+                JSONArray range = new JSONArray();
+                range.put(segment[0]);
+                range.put(segment[1]);
+                segments.put(range);
+            }
+            json.put("segments", segments);
+            if (decryptorState != null) {
+                json.put("decryptor", decryptorState);
+            }
+            FileTools.writeAtomically(file, json.toString());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public void clear() {
+        url = null;
+        fileName = null;
+        eTag = null;
+        lastModified = null;
+        bytes = -1;
+        digest = null;
+        segments.clear();
+        decryptorState = null;
+        // noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        Progress progress = new Progress(bytes);
+        progress.setBytesWritten(getSourceBytesCommitted());
+
+        JSONObject json = progress.toJSON();
+        json.put("url", url);
+        json.put("name", fileName);
+        return json;
+    }
+
+}
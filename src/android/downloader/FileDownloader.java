@@ -3,25 +3,111 @@ package de.kolbasa.apkupdater.downloader;
 import android.util.Base64;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.Observable;
+import java.util.Random;
 
 import de.kolbasa.apkupdater.exceptions.DownloadFailedException;
+import de.kolbasa.apkupdater.exceptions.InsufficientStorageException;
+import de.kolbasa.apkupdater.tools.ArchiveFormat;
+import de.kolbasa.apkupdater.tools.FileTools;
+import de.kolbasa.apkupdater.tools.Metrics;
 
 public class FileDownloader extends Observable {
 
     private static final int BROADCAST_LOCK_MILLIS = 100;
+    private static final int JOURNAL_INTERVAL_BYTES = 1024 * 1024;
+    private static final int BUFFER_BYTES = 64 * 1024;
 
-    private HttpURLConnection connection;
+    private static final int CONNECT_TIMEOUT_MILLIS = 15000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long RETRY_BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_AFTER_MILLIS = 60000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final Random random = new Random();
+
+    private int connectTimeoutMillis = CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = READ_TIMEOUT_MILLIS;
+    private long retryBaseDelayMillis = RETRY_BASE_DELAY_MILLIS;
+
+    private final Object retryLock = new Object();
+    private volatile HttpURLConnection connection;
+    private volatile boolean interrupted;
+    private volatile boolean paused;
+    private String payloadKey;
+    private String digest;
+
+    private int responseCode;
+    private long retryAfterMillis = -1;
+    private boolean retryable;
+
+    /**
+     * Expect an encrypted payload (see {@link PayloadDecryptor}) and decrypt it while downloading.
+     */
+    public void setPayloadKey(String payloadKey) {
+        this.payloadKey = payloadKey;
+    }
+
+    /**
+     * The expected SHA-256 of the file is kept in the journal, a part file of another version is not continued.
+     */
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * For tests against a local server, the defaults are meant for mobile networks.
+     */
+    void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis, long retryBaseDelayMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.retryBaseDelayMillis = retryBaseDelayMillis;
+    }
+
+    /**
+     * @return How long the server asked to wait before the next attempt or -1.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
 
     public void interrupt() {
+        interrupted = true;
+        synchronized (retryLock) {
+            // Ends the wait for the next attempt
+            retryLock.notifyAll();
+        }
+        disconnect();
+    }
+
+    /**
+     * Like {@link #interrupt()}, but everything written so far is synced and committed to the journal first.
+     */
+    public void pause() {
+        paused = true;
+        interrupt();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    private void disconnect() {
+        HttpURLConnection connection = this.connection;
         if (connection != null) {
             connection.disconnect();
-            connection = null;
+        }
+    }
+
+    private void checkInterrupted() throws IOException {
+        if (interrupted) {
+            throw new IOException("Download was interrupted");
         }
     }
 
@@ -30,72 +116,392 @@ public class FileDownloader extends Observable {
         notifyObservers(progress);
     }
 
-    public File download(String fileUrl, File dir, String basicAuth) throws DownloadFailedException {
+    private File complete(DownloadJournal journal, File outputFile) throws IOException {
+        if (outputFile.exists()) {
+            // noinspection ResultOfMethodCallIgnored
+            outputFile.delete();
+        }
+        if (!journal.getPartFile().renameTo(outputFile)) {
+            throw new IOException("Could not rename " + journal.getPartFile().getName());
+        }
+        journal.clear();
+        return outputFile;
+    }
+
+    static void checkFreeSpace(File dir, File outputFile, long fileLength, long offset)
+            throws InsufficientStorageException {
+        if (fileLength < 0) {
+            return;
+        }
+        long required = fileLength - offset;
+        if (ArchiveFormat.fromFileName(outputFile) != null) {
+            // The archive is extracted next to itself. The exact size is checked again before
+            // extracting, until then assume that the payload (usually an apk) barely compresses.
+            required += fileLength;
+        }
+        FileTools.checkFreeSpace(dir, required);
+    }
+
+    private static String getOutputName(String fileName, PayloadDecryptor decryptor) {
+        String extension = "." + PayloadDecryptor.FILE_EXTENSION;
+        if (decryptor != null && fileName.toLowerCase().endsWith(extension)) {
+            return fileName.substring(0, fileName.length() - extension.length());
+        }
+        return fileName;
+    }
+
+    /**
+     * Server errors and broken connections are retried with exponential backoff. Every retry
+     * continues from the journal, a Retry-After header of 429 and 503 responses is respected.
+     * <p>
+     * If peers have already delivered parts of the file, only the missing ranges are requested, one at a time.
+     */
+    public File download(String fileUrl, File dir, String basicAuth)
+            throws DownloadFailedException, InsufficientStorageException {
+        int attempt = 1;
+        while (true) {
+            try {
+                File file = transfer(fileUrl, dir, basicAuth);
+                if (file != null) {
+                    return file;
+                }
+                // A range has been filled, the next one gets a fresh set of attempts
+                attempt = 1;
+            } catch (DownloadFailedException e) {
+                long delay = getRetryDelay(attempt++);
+                if (delay < 0) {
+                    throw e;
+                }
+                Metrics.increment(Metrics.RETRIES);
+                if (!sleep(delay)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private long getRetryDelay(int attempt) {
+        if (interrupted || !retryable || attempt >= MAX_ATTEMPTS) {
+            return -1;
+        }
+        if (retryAfterMillis >= 0) {
+            return retryAfterMillis <= MAX_RETRY_AFTER_MILLIS ? retryAfterMillis : -1;
+        }
+        // Full jitter, so that a fleet of devices does not come back at the same moment
+        long backoff = retryBaseDelayMillis << (attempt - 1);
+        return backoff / 2 + (long) (random.nextDouble() * backoff / 2);
+    }
+
+    /**
+     * @return false if the download was stopped in the meantime
+     */
+    private boolean sleep(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        synchronized (retryLock) {
+            long remaining;
+            while (!interrupted && (remaining = end - System.currentTimeMillis()) > 0) {
+                try {
+                    retryLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return !interrupted;
+    }
 
-        String fileName = fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
-        File outputFile = new File(dir, fileName);
+    private static boolean isRetryable(int responseCode) {
+        return responseCode < 0 || responseCode == HttpURLConnection.HTTP_OK
+                || responseCode == HttpURLConnection.HTTP_PARTIAL
+                || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                || responseCode == HTTP_TOO_MANY_REQUESTS
+                || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
 
+    private static long parseRetryAfter(HttpURLConnection connection) {
+        String retryAfter = connection.getHeaderField("Retry-After");
+        if (retryAfter == null) {
+            return -1;
+        }
         try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            long date = connection.getHeaderFieldDate("Retry-After", -1);
+            return date < 0 ? -1 : Math.max(0, date - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * getContentLength() returns an int and getContentLengthLong() needs API 24, files over 2 GB would overflow.
+     *
+     * @return The length of the response body or -1 if it is unknown (e.g. a chunked response)
+     */
+    private static long getContentLength(HttpURLConnection connection) {
+        return parseContentLength(connection.getHeaderField("Content-Length"));
+    }
+
+    static long parseContentLength(String contentLength) {
+        try {
+            long length = contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+            return length < 0 ? -1 : length;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A 206 response must contain exactly the requested range, otherwise the part file would be corrupted.
+     *
+     * @param end Exclusive end of the requested range, the file length for an open range
+     */
+    static boolean isValidContentRange(String contentRange, long contentLength, long offset, long end,
+                                       long fileLength) {
+        if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-")) {
+            return false;
+        }
+        if (fileLength <= 0) {
+            return true;
+        }
+        return contentRange.startsWith("bytes " + offset + "-" + (end - 1) + "/")
+                && (contentRange.endsWith("/" + fileLength) || contentRange.endsWith("/*"))
+                && (contentLength < 0 || contentLength == end - offset);
+    }
+
+    /**
+     * @return The downloaded file or null if a range in between has been filled, but the file is not complete yet
+     */
+    private File transfer(String fileUrl, File dir, String basicAuth)
+            throws DownloadFailedException, InsufficientStorageException {
+
+        responseCode = -1;
+        retryAfterMillis = -1;
+        retryable = false;
+
+        DownloadJournal journal = DownloadJournal.load(dir);
+        if (!journal.isFor(fileUrl) || !journal.getPartFile().exists()
+                || (payloadKey != null) != (journal.getDecryptorState() != null)
+                || (digest != null && journal.getDigest() != null && !digest.equalsIgnoreCase(journal.getDigest()))) {
+            journal.clear();
+        }
+
+        HttpURLConnection connection = null;
+        try {
+            checkInterrupted();
+
+            PayloadDecryptor decryptor = null;
+            if (payloadKey != null) {
+                decryptor = PayloadDecryptor.restore(payloadKey, journal.getDecryptorState());
+            }
+
+            // Bytes of the part file and bytes of the response body behind the last safe point
+            long offset = journal.getBytesCommitted();
+            long sourceOffset = journal.getSourceBytesCommitted();
+            // End of the gap in front of the ranges that peers have delivered. An encrypted payload is never
+            // fetched from peers and can only be decrypted in order.
+            long rangeEnd = decryptor == null ? journal.getNextCommitted(offset) : -1;
+
+            if (sourceOffset > 0 && sourceOffset == journal.getBytes() && (decryptor == null || decryptor.isFinished())) {
+                // The process died after the last byte was synced, but before the file was renamed
+                return complete(journal, new File(dir, getOutputName(journal.getFileName(), decryptor)));
+            }
+
             URL url = new URL(fileUrl);
             connection = (HttpURLConnection) url.openConnection();
+            // Published before the check, so that interrupt() either sees the connection or is seen here
+            this.connection = connection;
+            checkInterrupted();
             connection.setUseCaches(false);
             connection.setAllowUserInteraction(false);
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            // A transparently decompressed response has no length and cannot be resumed by byte offset
+            connection.setRequestProperty("Accept-Encoding", "identity");
 
             if (basicAuth != null) {
-                basicAuth = new String(Base64.encode(basicAuth.getBytes(), Base64.NO_WRAP));
-                connection.setRequestProperty("Authorization", "Basic " + basicAuth);
+                String auth = new String(Base64.encode(basicAuth.getBytes(), Base64.NO_WRAP));
+                connection.setRequestProperty("Authorization", "Basic " + auth);
+            }
+
+            if (sourceOffset > 0 || rangeEnd > 0) {
+                String range = "bytes=" + sourceOffset + "-" + (rangeEnd > 0 ? String.valueOf(rangeEnd - 1) : "");
+                connection.setRequestProperty("Range", range);
+                String validator = journal.getETag() != null ? journal.getETag() : journal.getLastModified();
+                if (validator != null) {
+                    connection.setRequestProperty("If-Range", validator);
+                }
             }
 
+            long connectStart = System.currentTimeMillis();
             connection.connect();
+            checkInterrupted();
+            responseCode = connection.getResponseCode();
+            checkInterrupted();
+            long connectMillis = System.currentTimeMillis() - connectStart;
+            long savedMillis = ConnectionWarmer.getSavedMillis(url, connectMillis);
 
-            String headerFileName = connection.getHeaderField("Content-Disposition");
-            if (headerFileName != null && headerFileName.contains("filename=\"")) {
-                String name = headerFileName.split("\"")[1];
-                if (name != null) {
-                    outputFile = new File(dir, name);
+            if (responseCode != HttpURLConnection.HTTP_OK && responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    retryAfterMillis = parseRetryAfter(connection);
                 }
+                throw new IOException("Unexpected response code " + responseCode);
             }
 
-            // noinspection ResultOfMethodCallIgnored
-            outputFile.createNewFile();
+            long fileLength = getContentLength(connection);
+
+            if ((sourceOffset > 0 || rangeEnd > 0) && responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                fileLength = journal.getBytes();
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (!isValidContentRange(contentRange, getContentLength(connection), sourceOffset,
+                        rangeEnd > 0 ? rangeEnd : fileLength, fileLength)) {
+                    // Start over with the next attempt
+                    journal.clear();
+                    throw new IOException("Unexpected Content-Range: " + contentRange);
+                }
+            } else {
+                // No journal, or the server has a different version of the file: start from scratch
+                offset = 0;
+                sourceOffset = 0;
+                rangeEnd = -1;
+                if (decryptor != null) {
+                    decryptor = new PayloadDecryptor(payloadKey);
+                }
+
+                String fileName = fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
+                String headerFileName = connection.getHeaderField("Content-Disposition");
+                if (headerFileName != null && headerFileName.contains("filename=\"")) {
+                    String name = headerFileName.split("\"")[1];
+                    if (name != null) {
+                        fileName = name;
+                    }
+                }
+
+                journal.start(fileUrl, fileName, connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified"), fileLength, digest);
+            }
+
+            File outputFile = new File(dir, getOutputName(journal.getFileName(), decryptor));
+            checkFreeSpace(dir, outputFile, fileLength, sourceOffset);
 
             InputStream is = connection.getInputStream();
-            byte[] buffer = new byte[1024];
+            byte[] buffer = new byte[BUFFER_BYTES];
 
             int bytes;
-            int bytesDownloaded = 0;
-            long fileLength = connection.getContentLength();
+            long bytesDownloaded = sourceOffset;
+            long bytesCommitted = offset;
+            // Where this response ends, and the bytes that peers have already delivered behind it
+            long expectedEnd = rangeEnd > 0 ? rangeEnd : fileLength;
+            long laterBytes = rangeEnd > 0 ? journal.getCommittedLength() - offset : 0;
+
+            if (sourceOffset > 0) {
+                Metrics.increment(Metrics.RESUMED_DOWNLOADS);
+                Metrics.add(Metrics.REUSED_BYTES, sourceOffset);
+            }
+            long transferStartMillis = System.currentTimeMillis();
 
             Progress progress = new Progress(fileLength);
+            progress.setConnectTime(connectMillis, savedMillis);
+            progress.setBytesWritten(bytesDownloaded + laterBytes);
             broadcast(progress);
 
-            FileOutputStream fos = new FileOutputStream(outputFile);
-            long startTimeMillis = 0;
-            while ((bytes = is.read(buffer)) != -1) {
-                bytesDownloaded += bytes;
-                fos.write(buffer, 0, bytes);
+            try (RandomAccessFile raf = new RandomAccessFile(journal.getPartFile(), "rw")) {
+                if (rangeEnd < 0) {
+                    // Anything behind the last safe point may be garbage
+                    raf.setLength(offset);
+                    journal.truncate(offset);
+                }
+                if (expectedEnd > 0) {
+                    FileTools.preallocate(dir, raf, offset, expectedEnd - sourceOffset);
+                }
+                raf.seek(offset);
+
+                long startTimeMillis = 0;
+                try {
+                    while (!interrupted && (bytes = is.read(buffer)) != -1) {
+                        bytesDownloaded += bytes;
+                        if (decryptor == null) {
+                            raf.write(buffer, 0, bytes);
+                        } else {
+                            decryptor.update(buffer, 0, bytes, raf);
+                        }
+
+                        long bytesWritten = decryptor == null ? bytesDownloaded : decryptor.getOutputCommitted();
+                        if (bytesWritten - bytesCommitted >= JOURNAL_INTERVAL_BYTES && !interrupted) {
+                            raf.getFD().sync();
+                            journal.commit(bytesCommitted, bytesWritten, decryptor == null ? null : decryptor.saveState());
+                            bytesCommitted = bytesWritten;
+                        }
+
+                        if ((System.currentTimeMillis() - startTimeMillis) > BROADCAST_LOCK_MILLIS) {
+                            progress.setBytesWritten(bytesDownloaded + laterBytes);
+                            broadcast(progress);
+                            startTimeMillis = System.currentTimeMillis();
+                        }
+                    }
+                } finally {
+                    if (paused) {
+                        // Keep what has been written, resuming continues from here
+                        long bytesWritten = decryptor == null ? raf.getFilePointer() : decryptor.getOutputCommitted();
+                        if (bytesWritten > bytesCommitted) {
+                            raf.getFD().sync();
+                            journal.commit(bytesCommitted, bytesWritten, decryptor == null ? null : decryptor.saveState());
+                        }
+                    }
+                }
+
+                if (rangeEnd < 0 && raf.length() > raf.getFilePointer()) {
+                    // Preallocated, but the server sent less than announced
+                    raf.setLength(raf.getFilePointer());
+                }
+                raf.getFD().sync();
+            } finally {
+                is.close();
+                Metrics.add(Metrics.DOWNLOAD_BYTES, bytesDownloaded - sourceOffset);
+            }
+
+            checkInterrupted();
 
-                if ((System.currentTimeMillis() - startTimeMillis) > BROADCAST_LOCK_MILLIS) {
-                    progress.setBytesWritten(bytesDownloaded);
-                    broadcast(progress);
-                    startTimeMillis = System.currentTimeMillis();
+            if (expectedEnd > 0 && bytesDownloaded < expectedEnd) {
+                long bytesWritten = decryptor == null ? bytesDownloaded : decryptor.getOutputCommitted();
+                if (bytesWritten > bytesCommitted) {
+                    journal.commit(bytesCommitted, bytesWritten, decryptor == null ? null : decryptor.saveState());
                 }
+                throw new IOException("Connection closed after " + bytesDownloaded + " of " + expectedEnd + " bytes");
             }
 
-            progress.setBytesWritten(bytesDownloaded);
+            if (rangeEnd > 0) {
+                if (bytesDownloaded > bytesCommitted) {
+                    journal.commit(bytesCommitted, bytesDownloaded);
+                }
+                if (journal.getBytesCommitted() < fileLength) {
+                    // More gaps between the ranges of the peers
+                    return null;
+                }
+            }
+
+            if (decryptor != null) {
+                decryptor.finish();
+            }
+
+            if (progress.isIndeterminate()) {
+                progress.setBytes(bytesDownloaded);
+            }
+            progress.setBytesWritten(bytesDownloaded + laterBytes);
             broadcast(progress);
 
-            fos.flush();
-            fos.close();
-            is.close();
+            long transferMillis = Math.max(1, System.currentTimeMillis() - transferStartMillis);
+            Metrics.record(Metrics.DOWNLOAD_KBPS, (bytesDownloaded - sourceOffset) * 1000 / 1024 / transferMillis);
 
+            return complete(journal, outputFile);
+
+        } catch (InsufficientStorageException err) {
+            throw err;
         } catch (Exception err) {
-            if (outputFile.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                outputFile.delete();
-            }
+            // The part file and the journal are kept, so that the download can be resumed
+            retryable = err instanceof IOException && isRetryable(responseCode);
 
-            if (connection != null) {
+            // A disconnected connection would connect again to read the response
+            if (connection != null && !interrupted) {
                 try {
                     int responseCode = connection.getResponseCode();
                     String responseMessage = connection.getResponseMessage();
@@ -110,10 +516,11 @@ public class FileDownloader extends Observable {
 
             throw new DownloadFailedException(err);
         } finally {
-            interrupt();
+            this.connection = null;
+            if (connection != null) {
+                connection.disconnect();
+            }
         }
-
-        return outputFile;
     }
 
 }
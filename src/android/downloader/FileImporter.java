@@ -0,0 +1,188 @@
+package de.kolbasa.apkupdater.downloader;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Observable;
+
+import de.kolbasa.apkupdater.exceptions.InsufficientStorageException;
+import de.kolbasa.apkupdater.tools.FileTools;
+import de.kolbasa.apkupdater.tools.Metrics;
+
+/**
+ * Copies an update from local storage (file://) or a document provider (content://), e.g. an SD card or
+ * a USB drive, into the download directory.
+ * <p>
+ * The source is opened as a file descriptor, so that regular files are copied by the kernel with
+ * {@link FileChannel#transferTo}. Providers that only offer a pipe are copied through a direct buffer.
+ */
+public class FileImporter extends Observable {
+
+    private static final int BROADCAST_LOCK_MILLIS = 100;
+    private static final long TRANSFER_CHUNK_BYTES = 8 * 1024 * 1024;
+    private static final int BUFFER_BYTES = 256 * 1024;
+    private static final String PART_EXTENSION = ".part";
+
+    private final Context context;
+    private volatile boolean interrupted;
+
+    public FileImporter(Context context) {
+        this.context = context;
+    }
+
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
+    public void interrupt() {
+        interrupted = true;
+    }
+
+    private void broadcast(Progress progress) {
+        setChanged();
+        notifyObservers(progress);
+    }
+
+    private String getFileName(Uri uri) {
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            try (Cursor cursor = context.getContentResolver().query(uri,
+                    new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    int column = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                    if (column >= 0 && !cursor.isNull(column)) {
+                        return cursor.getString(column);
+                    }
+                }
+            }
+        }
+        return uri.getLastPathSegment();
+    }
+
+    private ParcelFileDescriptor open(Uri uri) throws IOException {
+        String scheme = uri.getScheme();
+        if (!ContentResolver.SCHEME_CONTENT.equals(scheme) && !ContentResolver.SCHEME_FILE.equals(scheme)) {
+            throw new IOException("Unsupported uri: " + uri);
+        }
+        ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        return descriptor;
+    }
+
+    private long transfer(FileChannel source, long size, FileChannel target, Progress progress) throws IOException {
+        long position = 0;
+        long broadcastTime = 0;
+        while (position < size) {
+            if (interrupted) {
+                throw new IOException("Import was interrupted");
+            }
+            long transferred = source.transferTo(position, Math.min(TRANSFER_CHUNK_BYTES, size - position), target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            if (System.currentTimeMillis() - broadcastTime > BROADCAST_LOCK_MILLIS) {
+                progress.setBytesWritten(position);
+                broadcast(progress);
+                broadcastTime = System.currentTimeMillis();
+            }
+        }
+        return position;
+    }
+
+    private long stream(FileChannel source, long position, FileChannel target, Progress progress) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        long broadcastTime = 0;
+        while (source.read(buffer) > 0) {
+            if (interrupted) {
+                throw new IOException("Import was interrupted");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+            buffer.clear();
+            if (System.currentTimeMillis() - broadcastTime > BROADCAST_LOCK_MILLIS) {
+                progress.setBytesWritten(position);
+                broadcast(progress);
+                broadcastTime = System.currentTimeMillis();
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return The imported file in the given directory
+     */
+    public File importFile(Uri uri, File dir) throws IOException, InsufficientStorageException {
+        String fileName = getFileName(uri);
+        if (fileName == null || fileName.isEmpty() || fileName.contains(File.separator)) {
+            throw new IOException("Invalid file name: " + fileName);
+        }
+        File outputFile = new File(dir, fileName);
+        File partFile = new File(dir, fileName + PART_EXTENSION);
+
+        try (ParcelFileDescriptor descriptor = open(uri);
+             FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+             RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+
+            // -1 for pipes and sockets
+            long size = descriptor.getStatSize();
+            FileDownloader.checkFreeSpace(dir, outputFile, size, 0);
+
+            raf.setLength(0);
+            FileTools.preallocate(partFile, raf, 0, size);
+
+            Progress progress = new Progress(size);
+            progress.setBytesWritten(0);
+            broadcast(progress);
+
+            FileChannel source = in.getChannel();
+            FileChannel target = raf.getChannel();
+            long position = size > 0 ? transfer(source, size, target, progress) : 0;
+            if (position < size || size < 0) {
+                // Not a regular file, or the provider does not support transferTo
+                if (position > 0) {
+                    source.position(position);
+                }
+                position = stream(source, position, target, progress);
+            }
+            if (size >= 0 && position != size) {
+                throw new IOException("Read " + position + " of " + size + " bytes from " + uri);
+            }
+            raf.setLength(position);
+            raf.getFD().sync();
+
+            Metrics.add(Metrics.IMPORTED_BYTES, position);
+            if (progress.isIndeterminate()) {
+                progress.setBytes(position);
+            }
+            progress.setBytesWritten(position);
+            broadcast(progress);
+        } catch (IOException | InsufficientStorageException | RuntimeException e) {
+            // noinspection ResultOfMethodCallIgnored
+            partFile.delete();
+            throw e;
+        }
+
+        if (!partFile.renameTo(outputFile)) {
+            // noinspection ResultOfMethodCallIgnored
+            partFile.delete();
+            throw new IOException("Could not rename " + partFile.getName());
+        }
+        return outputFile;
+    }
+
+}
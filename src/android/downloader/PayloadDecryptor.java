@@ -0,0 +1,223 @@
+package de.kolbasa.apkupdater.downloader;
+
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts the chunked AES-GCM payload format while it is being downloaded.
+ * <p>
+ * Header: magic "APKE", version (1 byte), chunk size (u32), nonce prefix (8 bytes).
+ * Frames: final flag (1 byte), length (u32), ciphertext with 16 byte tag.
+ * The nonce of a frame is the nonce prefix followed by the frame index (u32),
+ * the header and the final flag are authenticated as additional data.
+ * All numbers are big-endian. See doc/EncryptedPayload.md.
+ */
+public class PayloadDecryptor {
+
+    public static final String FILE_EXTENSION = "enc";
+
+    private static final byte[] MAGIC = {'A', 'P', 'K', 'E'};
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 17;
+    private static final int NONCE_PREFIX_OFFSET = 9;
+    private static final int NONCE_PREFIX_LENGTH = 8;
+    private static final int FRAME_HEADER_LENGTH = 5;
+    private static final int TAG_LENGTH = 16;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final SecretKeySpec key;
+    private final Cipher cipher;
+
+    private byte[] header;
+    private int chunkSize;
+    private long frameIndex;
+    private boolean finished;
+
+    private long inputCommitted;
+    private long outputCommitted;
+
+    private byte[] pending = new byte[HEADER_LENGTH];
+    private int pendingLength;
+    private byte[] plain;
+
+    public PayloadDecryptor(String key) throws GeneralSecurityException {
+        this.key = new SecretKeySpec(decodeKey(key), "AES");
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    private static byte[] decodeKey(String key) {
+        byte[] bytes;
+        try {
+            bytes = Base64.decode(key, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("The payload key is not valid Base64", e);
+        }
+        if (bytes.length != 16 && bytes.length != 24 && bytes.length != 32) {
+            throw new IllegalArgumentException("The payload key must be an AES key of 16, 24 or 32 bytes, got "
+                    + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Rejects a malformed key before anything is downloaded, instead of after the first frame.
+     */
+    public static void checkKey(String key) {
+        decodeKey(key);
+    }
+
+    /**
+     * Continues a download from the state saved with {@link #saveState()}.
+     */
+    public static PayloadDecryptor restore(String key, JSONObject state) throws GeneralSecurityException,
+            JSONException {
+        PayloadDecryptor decryptor = new PayloadDecryptor(key);
+        if (state != null) {
+            decryptor.setHeader(Base64.decode(state.getString("header"), Base64.DEFAULT));
+            decryptor.frameIndex = state.getLong("frame");
+            decryptor.finished = state.getBoolean("finished");
+            decryptor.inputCommitted = state.getLong("input");
+            decryptor.outputCommitted = state.getLong("output");
+        }
+        return decryptor;
+    }
+
+    public JSONObject saveState() throws JSONException {
+        if (header == null) {
+            return null;
+        }
+        JSONObject state = new JSONObject();
+        state.put("header", Base64.encodeToString(header, Base64.NO_WRAP));
+        state.put("frame", frameIndex);
+        state.put("finished", finished);
+        state.put("input", inputCommitted);
+        state.put("output", outputCommitted);
+        return state;
+    }
+
+    /**
+     * Payload bytes that have been fully processed. Everything after this is buffered or not received yet.
+     */
+    public long getInputCommitted() {
+        return inputCommitted;
+    }
+
+    /**
+     * Plaintext bytes written so far. Plaintext is only written for complete, authenticated frames.
+     */
+    public long getOutputCommitted() {
+        return outputCommitted;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void setHeader(byte[] header) throws GeneralSecurityException {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (header[i] != MAGIC[i]) {
+                throw new GeneralSecurityException("Not an encrypted update payload");
+            }
+        }
+        if (header[MAGIC.length] != VERSION) {
+            throw new GeneralSecurityException("Unsupported payload version: " + header[MAGIC.length]);
+        }
+        chunkSize = ByteBuffer.wrap(header, MAGIC.length + 1, 4).getInt();
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new GeneralSecurityException("Invalid chunk size: " + chunkSize);
+        }
+        this.header = header;
+        this.pending = new byte[FRAME_HEADER_LENGTH + chunkSize + TAG_LENGTH];
+        this.plain = new byte[chunkSize + TAG_LENGTH];
+    }
+
+    private int getFrameLength() throws GeneralSecurityException {
+        int length = ByteBuffer.wrap(pending, 1, 4).getInt();
+        if (length < TAG_LENGTH || length > chunkSize + TAG_LENGTH) {
+            throw new GeneralSecurityException("Invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    private int getTargetLength() throws GeneralSecurityException {
+        if (header == null) {
+            return HEADER_LENGTH;
+        }
+        if (pendingLength < FRAME_HEADER_LENGTH) {
+            return FRAME_HEADER_LENGTH;
+        }
+        return FRAME_HEADER_LENGTH + getFrameLength();
+    }
+
+    private void decryptFrame(DataOutput out) throws IOException, GeneralSecurityException {
+        if (frameIndex > 0xffffffffL) {
+            throw new GeneralSecurityException("Too many frames");
+        }
+
+        byte flag = pending[0];
+        byte[] nonce = ByteBuffer.allocate(NONCE_PREFIX_LENGTH + 4)
+                .put(header, NONCE_PREFIX_OFFSET, NONCE_PREFIX_LENGTH)
+                .putInt((int) frameIndex)
+                .array();
+
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+        cipher.updateAAD(header);
+        cipher.updateAAD(new byte[]{flag});
+        int length = cipher.doFinal(pending, FRAME_HEADER_LENGTH, pendingLength - FRAME_HEADER_LENGTH, plain, 0);
+
+        out.write(plain, 0, length);
+
+        inputCommitted += pendingLength;
+        outputCommitted += length;
+        frameIndex++;
+        finished = flag == 1;
+    }
+
+    public void update(byte[] data, int offset, int length, DataOutput out)
+            throws IOException, GeneralSecurityException {
+        while (length > 0) {
+            if (finished) {
+                throw new GeneralSecurityException("Unexpected data after the final frame");
+            }
+
+            int target = getTargetLength();
+            int count = Math.min(target - pendingLength, length);
+            System.arraycopy(data, offset, pending, pendingLength, count);
+            pendingLength += count;
+            offset += count;
+            length -= count;
+
+            if (pendingLength == getTargetLength()) {
+                if (header == null) {
+                    setHeader(pending.clone());
+                    inputCommitted += HEADER_LENGTH;
+                    pendingLength = 0;
+                } else if (pendingLength > FRAME_HEADER_LENGTH) {
+                    decryptFrame(out);
+                    pendingLength = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure that the payload was not truncated.
+     */
+    public void finish() throws GeneralSecurityException {
+        if (!finished || pendingLength > 0) {
+            throw new GeneralSecurityException("Encrypted payload is incomplete");
+        }
+    }
+
+}
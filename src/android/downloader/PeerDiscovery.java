@@ -0,0 +1,171 @@
+package de.kolbasa.apkupdater.downloader;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Announces a {@link PeerServer} via DNS-SD and finds other devices that serve the same file.
+ * The TXT record carries the SHA-256 and the length of the served file.
+ */
+public class PeerDiscovery {
+
+    private static final String SERVICE_TYPE = "_apkupdater._tcp.";
+    private static final String SERVICE_NAME = "ApkUpdater";
+    private static final String DIGEST = "sha256";
+    private static final String LENGTH = "length";
+
+    private static final long RESOLVE_TIMEOUT_MILLIS = 2000;
+
+    private final NsdManager nsdManager;
+
+    private NsdManager.RegistrationListener registration;
+    private volatile String registeredName;
+
+    public PeerDiscovery(Context context) {
+        this.nsdManager = (NsdManager) context.getSystemService(Context.NSD_SERVICE);
+    }
+
+    public synchronized void register(int port, String digest, long length) {
+        unregister();
+
+        NsdServiceInfo service = new NsdServiceInfo();
+        service.setServiceName(SERVICE_NAME);
+        service.setServiceType(SERVICE_TYPE);
+        service.setPort(port);
+        service.setAttribute(DIGEST, digest.toLowerCase());
+        service.setAttribute(LENGTH, String.valueOf(length));
+
+        registration = new NsdManager.RegistrationListener() {
+            @Override
+            public void onServiceRegistered(NsdServiceInfo info) {
+                // The name may have been changed to resolve a conflict
+                registeredName = info.getServiceName();
+            }
+
+            @Override
+            public void onRegistrationFailed(NsdServiceInfo info, int errorCode) {
+                registeredName = null;
+            }
+
+            @Override
+            public void onServiceUnregistered(NsdServiceInfo info) {
+                registeredName = null;
+            }
+
+            @Override
+            public void onUnregistrationFailed(NsdServiceInfo info, int errorCode) {
+            }
+        };
+        nsdManager.registerService(service, NsdManager.PROTOCOL_DNS_SD, registration);
+    }
+
+    public synchronized void unregister() {
+        if (registration != null) {
+            try {
+                nsdManager.unregisterService(registration);
+            } catch (IllegalArgumentException e) {
+                // Registration had failed
+            }
+            registration = null;
+        }
+    }
+
+    private static String getAttribute(NsdServiceInfo info, String key) {
+        Map<String, byte[]> attributes = info.getAttributes();
+        byte[] value = attributes == null ? null : attributes.get(key);
+        return value == null ? null : new String(value);
+    }
+
+    /**
+     * Browses the network for the given time.
+     *
+     * @return "host:port" of every peer that serves a file with this digest
+     */
+    public List<String> discover(String digest, long timeoutMillis) throws InterruptedException {
+        LinkedBlockingQueue<NsdServiceInfo> found = new LinkedBlockingQueue<>();
+        NsdManager.DiscoveryListener listener = new NsdManager.DiscoveryListener() {
+            @Override
+            public void onServiceFound(NsdServiceInfo info) {
+                if (!info.getServiceName().equals(registeredName)) {
+                    found.add(info);
+                }
+            }
+
+            @Override
+            public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+            }
+
+            @Override
+            public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+            }
+
+            @Override
+            public void onDiscoveryStarted(String serviceType) {
+            }
+
+            @Override
+            public void onDiscoveryStopped(String serviceType) {
+            }
+
+            @Override
+            public void onServiceLost(NsdServiceInfo info) {
+            }
+        };
+
+        List<String> peers = new ArrayList<>();
+        nsdManager.discoverServices(SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, listener);
+        try {
+            long end = System.currentTimeMillis() + timeoutMillis;
+            long remaining;
+            while ((remaining = end - System.currentTimeMillis()) > 0) {
+                NsdServiceInfo info = found.poll(remaining, TimeUnit.MILLISECONDS);
+                if (info == null) {
+                    break;
+                }
+                NsdServiceInfo resolved = resolve(info);
+                if (resolved != null && resolved.getHost() != null
+                        && digest.equalsIgnoreCase(getAttribute(resolved, DIGEST))) {
+                    peers.add(resolved.getHost().getHostAddress() + ":" + resolved.getPort());
+                }
+            }
+        } finally {
+            try {
+                nsdManager.stopServiceDiscovery(listener);
+            } catch (IllegalArgumentException e) {
+                // Discovery had failed to start
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * NsdManager resolves one service at a time, so this waits for each result.
+     */
+    private NsdServiceInfo resolve(NsdServiceInfo info) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        NsdServiceInfo[] result = new NsdServiceInfo[1];
+        nsdManager.resolveService(info, new NsdManager.ResolveListener() {
+            @Override
+            public void onServiceResolved(NsdServiceInfo resolved) {
+                result[0] = resolved;
+                latch.countDown();
+            }
+
+            @Override
+            public void onResolveFailed(NsdServiceInfo info, int errorCode) {
+                latch.countDown();
+            }
+        });
+        latch.await(RESOLVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        return result[0];
+    }
+
+}
@@ -0,0 +1,323 @@
+package de.kolbasa.apkupdater.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.kolbasa.apkupdater.exceptions.InsufficientStorageException;
+import de.kolbasa.apkupdater.tools.Metrics;
+
+/**
+ * Fetches a file from other devices on the local network (see {@link PeerServer}).
+ * <p>
+ * The file is split into chunks that are fetched in parallel, one connection per peer. Every chunk is
+ * synced and committed to the {@link DownloadJournal}, a peer that fails is dropped and its chunk goes
+ * back to the queue. Whatever could not be fetched from the peers is left to the {@link FileDownloader},
+ * which continues the same journal from the origin.
+ * <p>
+ * Plain sockets instead of HttpURLConnection: the peers only speak the subset of HTTP of {@link PeerServer},
+ * and the network security config of the app would reject cleartext HTTP.
+ */
+public class PeerDownloader extends Observable {
+
+    private static final long CHUNK_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PEERS = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+    private static final int BROADCAST_LOCK_MILLIS = 100;
+
+    private static final int MAX_HEADER_BYTES = 8192;
+
+    private final Set<Socket> connections = Collections.synchronizedSet(new HashSet<>());
+    private volatile boolean interrupted;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private Progress progress;
+    private long broadcastTime;
+
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
+    public void interrupt() {
+        interrupted = true;
+        synchronized (connections) {
+            for (Socket connection : connections) {
+                close(connection);
+            }
+        }
+    }
+
+    private static class Response {
+
+        private int code;
+        private final Map<String, String> headers = new HashMap<>();
+        private InputStream body;
+
+    }
+
+    private static String readLine(InputStream in, int[] budget) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (--budget[0] < 0) {
+                throw new IOException("Response header too large");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1) {
+            throw new IOException("Connection closed");
+        }
+        return line.toString("US-ASCII");
+    }
+
+    private Socket open(String peer) throws IOException {
+        int colon = peer.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IOException("Missing port: " + peer);
+        }
+        String host = peer.substring(0, colon).replace("[", "").replace("]", "");
+        Socket socket = new Socket();
+        connections.add(socket);
+        socket.connect(new InetSocketAddress(host, Integer.parseInt(peer.substring(colon + 1))),
+                CONNECT_TIMEOUT_MILLIS);
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    private void close(Socket socket) {
+        connections.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static Response request(Socket socket, String method, String digest, String range) throws IOException {
+        StringBuilder request = new StringBuilder(method).append(' ')
+                .append(PeerServer.PATH_PREFIX).append(digest.toLowerCase()).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(socket.getInetAddress().getHostAddress()).append("\r\n");
+        if (range != null) {
+            request.append("Range: ").append(range).append("\r\n");
+        }
+        request.append("Connection: close\r\n\r\n");
+        socket.getOutputStream().write(request.toString().getBytes("US-ASCII"));
+        socket.getOutputStream().flush();
+
+        Response response = new Response();
+        response.body = new BufferedInputStream(socket.getInputStream());
+        int[] budget = {MAX_HEADER_BYTES};
+        String[] status = readLine(response.body, budget).split(" ");
+        try {
+            response.code = Integer.parseInt(status[1]);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid status line");
+        }
+        String line;
+        while (!(line = readLine(response.body, budget)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        return response;
+    }
+
+    private static long parseLength(String contentLength) {
+        try {
+            return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The length of the file the peer serves or -1 if it does not serve it.
+     */
+    private long probe(String peer, String digest) {
+        Socket socket = null;
+        try {
+            socket = open(peer);
+            Response response = request(socket, "HEAD", digest, null);
+            if (response.code != 200) {
+                return -1;
+            }
+            return parseLength(response.headers.get("content-length"));
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        } finally {
+            if (socket != null) {
+                close(socket);
+            }
+        }
+    }
+
+    private synchronized void broadcast(boolean force) {
+        progress.setBytesWritten(bytesWritten.get());
+        if (force || System.currentTimeMillis() - broadcastTime > BROADCAST_LOCK_MILLIS) {
+            setChanged();
+            notifyObservers(progress);
+            broadcastTime = System.currentTimeMillis();
+        }
+    }
+
+    private void fetch(String peer, String digest, long[] chunk, long length, FileChannel channel,
+                       DownloadJournal journal) throws IOException {
+        Socket socket = open(peer);
+        try {
+            long to = chunk[1] - 1;
+            Response response = request(socket, "GET", digest, "bytes=" + chunk[0] + "-" + to);
+            String expectedRange = "bytes " + chunk[0] + "-" + to + "/" + length;
+            if (response.code != 206 || !expectedRange.equals(response.headers.get("content-range"))) {
+                throw new IOException("Unexpected response from " + peer);
+            }
+
+            long position = chunk[0];
+            try (InputStream is = response.body) {
+                byte[] buffer = new byte[64 * 1024];
+                int bytes;
+                while (position < chunk[1] && (bytes = is.read(buffer, 0,
+                        (int) Math.min(buffer.length, chunk[1] - position))) != -1) {
+                    if (interrupted) {
+                        throw new IOException("Download was interrupted");
+                    }
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytes);
+                    while (data.hasRemaining()) {
+                        long written = channel.write(data, position);
+                        position += written;
+                        bytesWritten.addAndGet(written);
+                    }
+                    broadcast(false);
+                }
+                if (position < chunk[1]) {
+                    throw new IOException("Connection to " + peer + " closed after " + (position - chunk[0]) + " bytes");
+                }
+            } catch (IOException e) {
+                // The chunk is fetched again, its bytes do not count
+                bytesWritten.addAndGet(chunk[0] - position);
+                throw e;
+            }
+
+            channel.force(false);
+            synchronized (journal) {
+                journal.commit(chunk[0], chunk[1]);
+            }
+            Metrics.add(Metrics.PEER_BYTES, chunk[1] - chunk[0]);
+        } finally {
+            close(socket);
+        }
+    }
+
+    /**
+     * Fetches as much of the file as possible from the peers into the part file of the journal.
+     * An existing journal for the same url is continued.
+     *
+     * @param peers "host:port" of the peers
+     * @return The number of bytes fetched from the peers
+     */
+    public long download(String fileUrl, File dir, String digest, List<String> peers)
+            throws InsufficientStorageException, IOException {
+
+        DownloadJournal journal = DownloadJournal.load(dir);
+        boolean resume = journal.isFor(fileUrl) && journal.getPartFile().exists()
+                && journal.getDecryptorState() == null && journal.getBytes() > 0
+                && (journal.getDigest() == null || journal.getDigest().equalsIgnoreCase(digest));
+
+        long length = resume ? journal.getBytes() : -1;
+        List<String> sources = new ArrayList<>();
+        for (String peer : peers) {
+            if (interrupted || sources.size() >= MAX_PEERS) {
+                break;
+            }
+            long peerLength = probe(peer, digest);
+            if (peerLength > 0 && (length < 0 || peerLength == length)) {
+                length = peerLength;
+                sources.add(peer);
+            }
+        }
+        if (sources.isEmpty() || interrupted) {
+            return 0;
+        }
+
+        if (!resume) {
+            journal.clear();
+            String fileName = fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
+            journal.start(fileUrl, fileName, null, null, length, digest);
+            // noinspection ResultOfMethodCallIgnored
+            journal.getPartFile().delete();
+        }
+
+        LinkedBlockingDeque<long[]> chunks = new LinkedBlockingDeque<>();
+        long committed = 0;
+        for (long from = 0; from < length; from += CHUNK_BYTES) {
+            long to = Math.min(length, from + CHUNK_BYTES);
+            if (journal.isCommitted(from, to)) {
+                committed += to - from;
+            } else {
+                chunks.add(new long[]{from, to});
+            }
+        }
+        if (chunks.isEmpty()) {
+            return 0;
+        }
+
+        File partFile = journal.getPartFile();
+        FileDownloader.checkFreeSpace(dir, new File(dir, journal.getFileName()), length, committed);
+
+        bytesWritten.set(committed);
+        progress = new Progress(length);
+        broadcast(true);
+        long start = committed;
+
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+            FileChannel channel = raf.getChannel();
+            List<Thread> workers = new ArrayList<>();
+            for (String peer : sources) {
+                long fileLength = length;
+                Thread worker = new Thread(() -> {
+                    long[] chunk;
+                    while (!interrupted && (chunk = chunks.pollFirst()) != null) {
+                        try {
+                            fetch(peer, digest, chunk, fileLength, channel, journal);
+                        } catch (IOException | RuntimeException e) {
+                            // Another peer or the origin takes over
+                            chunks.addFirst(chunk);
+                            return;
+                        }
+                    }
+                }, "ApkUpdater-PeerDownloader");
+                worker.start();
+                workers.add(worker);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            interrupt();
+        }
+
+        broadcast(true);
+        return bytesWritten.get() - start;
+    }
+
+}
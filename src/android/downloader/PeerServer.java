@@ -0,0 +1,223 @@
+package de.kolbasa.apkupdater.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP endpoint that serves one verified update file to other devices on the local network.
+ * <p>
+ * Only "GET /update/&lt;sha256&gt;" and HEAD are supported, with single byte ranges. Every response
+ * closes the connection. The receiver checks the whole file against the digest published by the
+ * origin, so a peer can only waste bandwidth, not tamper with the update.
+ */
+public class PeerServer {
+
+    public static final String PATH_PREFIX = "/update/";
+
+    private static final int MAX_CONNECTIONS = 4;
+    private static final int SO_TIMEOUT_MILLIS = 30000;
+    private static final int MAX_HEADER_LINES = 64;
+    static final int MAX_LINE_BYTES = 8192;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+
+    private volatile File file;
+    private volatile String digest;
+
+    /**
+     * @param port 0 for any free port
+     */
+    public PeerServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(this::accept, "ApkUpdater-PeerServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Replaces the served file. null stops serving, requests are answered with 404.
+     */
+    public void serve(File file, String digest) {
+        this.file = file;
+        this.digest = digest == null ? null : digest.toLowerCase();
+    }
+
+    public String getDigest() {
+        return file == null ? null : digest;
+    }
+
+    public long getLength() {
+        File file = this.file;
+        return file == null ? -1 : file.length();
+    }
+
+    public void close() {
+        serve(null, null);
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> handle(socket));
+            } catch (SocketException e) {
+                // Closed
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void writeHead(OutputStream out, String status, long contentLength, String contentRange)
+            throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Content-Length: ").append(contentLength).append("\r\n");
+        head.append("Accept-Ranges: bytes\r\n");
+        if (contentRange != null) {
+            head.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        head.append("Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("US-ASCII"));
+    }
+
+    /**
+     * @return {from, to} inclusive or null if the header is missing. Throws for ranges that cannot be served.
+     */
+    private static long[] parseRange(String range, long length) {
+        if (range == null) {
+            return null;
+        }
+        if (!range.startsWith("bytes=") || range.contains(",")) {
+            throw new IllegalArgumentException(range);
+        }
+        String[] bounds = range.substring("bytes=".length()).trim().split("-", -1);
+        long from;
+        long to;
+        if (bounds[0].isEmpty()) {
+            // Suffix range: the last n bytes
+            from = Math.max(0, length - Long.parseLong(bounds[1]));
+            to = length - 1;
+        } else {
+            from = Long.parseLong(bounds[0]);
+            to = bounds[1].isEmpty() ? length - 1 : Math.min(Long.parseLong(bounds[1]), length - 1);
+        }
+        if (from > to || from >= length) {
+            throw new IllegalArgumentException(range);
+        }
+        return new long[]{from, to};
+    }
+
+    /**
+     * Reads a line without its line break. Longer lines than {@link #MAX_LINE_BYTES} are rejected,
+     * so that a peer cannot make the server buffer an endless line.
+     *
+     * @return null at the end of the stream
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                if (line.size() >= MAX_LINE_BYTES) {
+                    throw new IOException("Line exceeds " + MAX_LINE_BYTES + " bytes");
+                }
+                line.write(b);
+            }
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString("US-ASCII");
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(SO_TIMEOUT_MILLIS);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return;
+            }
+            String range = null;
+            String line;
+            int lines = 0;
+            while ((line = readLine(in)) != null && !line.isEmpty() && lines++ < MAX_HEADER_LINES) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+
+            String[] request = requestLine.split(" ");
+            if (request.length < 2 || !(request[0].equals("GET") || request[0].equals("HEAD"))) {
+                writeHead(out, "405 Method Not Allowed", 0, null);
+                return;
+            }
+
+            File file = this.file;
+            String digest = this.digest;
+            if (file == null || !file.exists() || !request[1].equalsIgnoreCase(PATH_PREFIX + digest)) {
+                writeHead(out, "404 Not Found", 0, null);
+                return;
+            }
+
+            long length = file.length();
+            long[] bounds;
+            try {
+                bounds = parseRange(range, length);
+            } catch (IllegalArgumentException e) {
+                writeHead(out, "416 Range Not Satisfiable", 0, "bytes */" + length);
+                return;
+            }
+
+            long from = bounds == null ? 0 : bounds[0];
+            long count = bounds == null ? length : bounds[1] - bounds[0] + 1;
+            if (bounds == null) {
+                writeHead(out, "200 OK", count, null);
+            } else {
+                writeHead(out, "206 Partial Content", count, "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+            }
+            if (request[0].equals("HEAD")) {
+                return;
+            }
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                raf.seek(from);
+                byte[] buffer = new byte[64 * 1024];
+                while (count > 0) {
+                    int len = raf.read(buffer, 0, (int) Math.min(buffer.length, count));
+                    if (len < 0) {
+                        break;
+                    }
+                    out.write(buffer, 0, len);
+                    count -= len;
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The peer went away, nothing to clean up
+        }
+    }
+
+}
@@ -3,12 +3,22 @@ package de.kolbasa.apkupdater.downloader;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * Progress of a download or an extraction. If the total is not known (a chunked response or a stream without
+ * a size header), the percentage is -1 and only the bytes and the throughput are reported.
+ */
 public class Progress {
 
     private final boolean round;
-    private final long bytes;
+    private long bytes;
     private long bytesWritten;
     private float percent;
+    private long connectMillis = -1;
+    private long savedMillis = -1;
+
+    private long firstBytesWritten = -1;
+    private long firstMillis;
+    private long bytesPerSecond = -1;
 
     public Progress(long bytes) {
         this(bytes, false);
@@ -19,15 +29,38 @@ public class Progress {
         this.round = round;
     }
 
+    /**
+     * Sets the total once it is known, e.g. at the end of a stream without a length.
+     */
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+        setBytesWritten(bytesWritten);
+    }
+
+    public boolean isIndeterminate() {
+        return bytes < 0;
+    }
+
     public float getPercent() {
-        return percent;
+        return isIndeterminate() ? -1 : percent;
     }
 
     public void setBytesWritten(long bytesWritten) {
         this.bytesWritten = bytesWritten;
 
+        // Averaged from the first update, so that resumed bytes do not count
+        long now = System.currentTimeMillis();
+        if (firstBytesWritten < 0) {
+            firstBytesWritten = bytesWritten;
+            firstMillis = now;
+        } else if (now > firstMillis) {
+            bytesPerSecond = (bytesWritten - firstBytesWritten) * 1000 / (now - firstMillis);
+        }
+
         if (bytes > 0) {
             percent = ((((float) this.bytesWritten) / bytes) * 100);
+        } else if (bytes == 0) {
+            percent = 100f;
         }
 
         if (percent > 100) {
@@ -39,11 +72,29 @@ public class Progress {
         }
     }
 
+    /**
+     * @param connectMillis Time until the response headers arrived
+     * @param savedMillis   Time saved by a connection that was opened in advance or -1
+     */
+    public void setConnectTime(long connectMillis, long savedMillis) {
+        this.connectMillis = connectMillis;
+        this.savedMillis = savedMillis;
+    }
+
     public JSONObject toJSON() throws JSONException {
         JSONObject json = new JSONObject();
-        json.put("progress", ((double) (int) (percent * 100.0)) / 100.0); // Trim to 2 decimal places
+        json.put("progress", isIndeterminate() ? -1 : ((double) (int) (percent * 100.0)) / 100.0); // Trim to 2 decimal places
         json.put("bytes", bytes);
         json.put("bytesWritten", bytesWritten);
+        if (bytesPerSecond >= 0) {
+            json.put("bytesPerSecond", bytesPerSecond);
+        }
+        if (connectMillis >= 0) {
+            json.put("connectMillis", connectMillis);
+        }
+        if (savedMillis >= 0) {
+            json.put("savedMillis", savedMillis);
+        }
         return json;
     }
 
@@ -0,0 +1,7 @@
+package de.kolbasa.apkupdater.exceptions;
+
+public class ChecksumMismatchException extends Exception {
+    public ChecksumMismatchException(String fileName) {
+        super("Checksum mismatch: " + fileName);
+    }
+}
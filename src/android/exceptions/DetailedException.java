@@ -0,0 +1,11 @@
+package de.kolbasa.apkupdater.exceptions;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Exceptions that carry machine-readable details for the JavaScript side.
+ */
+public interface DetailedException {
+    JSONObject getDetails() throws JSONException;
+}
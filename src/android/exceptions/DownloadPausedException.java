@@ -0,0 +1,7 @@
+package de.kolbasa.apkupdater.exceptions;
+
+public class DownloadPausedException extends Exception {
+    public DownloadPausedException() {
+        super("Download was paused");
+    }
+}
@@ -0,0 +1,7 @@
+package de.kolbasa.apkupdater.exceptions;
+
+public class ImportNotPausableException extends Exception {
+    public ImportNotPausableException() {
+        super("An import cannot be paused");
+    }
+}
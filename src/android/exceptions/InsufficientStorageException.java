@@ -0,0 +1,25 @@
+package de.kolbasa.apkupdater.exceptions;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class InsufficientStorageException extends Exception implements DetailedException {
+
+    private final long requiredBytes;
+    private final long availableBytes;
+
+    public InsufficientStorageException(long requiredBytes, long availableBytes) {
+        super("Insufficient storage: " + (requiredBytes - availableBytes) + " bytes missing");
+        this.requiredBytes = requiredBytes;
+        this.availableBytes = availableBytes;
+    }
+
+    @Override
+    public JSONObject getDetails() throws JSONException {
+        JSONObject details = new JSONObject();
+        details.put("requiredBytes", requiredBytes);
+        details.put("availableBytes", availableBytes);
+        details.put("missingBytes", requiredBytes - availableBytes);
+        return details;
+    }
+}
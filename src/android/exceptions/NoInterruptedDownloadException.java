@@ -0,0 +1,7 @@
+package de.kolbasa.apkupdater.exceptions;
+
+public class NoInterruptedDownloadException extends Exception {
+    public NoInterruptedDownloadException() {
+        super("No interrupted download found");
+    }
+}
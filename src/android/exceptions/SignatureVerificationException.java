@@ -0,0 +1,36 @@
+package de.kolbasa.apkupdater.exceptions;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+
+public class SignatureVerificationException extends Exception implements DetailedException {
+
+    private final Collection<String> certificates;
+    private final Collection<String> expected;
+
+    public SignatureVerificationException(String details) {
+        super("Signature verification failed: " + details);
+        this.certificates = null;
+        this.expected = null;
+    }
+
+    public SignatureVerificationException(Collection<String> certificates, Collection<String> expected) {
+        super("Signature verification failed: Certificate does not match");
+        this.certificates = certificates;
+        this.expected = expected;
+    }
+
+    @Override
+    public JSONObject getDetails() throws JSONException {
+        if (certificates == null) {
+            return null;
+        }
+        JSONObject details = new JSONObject();
+        details.put("certificates", new JSONArray(certificates));
+        details.put("expected", new JSONArray(expected));
+        return details;
+    }
+}
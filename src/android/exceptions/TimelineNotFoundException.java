@@ -0,0 +1,7 @@
+package de.kolbasa.apkupdater.exceptions;
+
+public class TimelineNotFoundException extends Exception {
+    public TimelineNotFoundException() {
+        super("No update timeline found");
+    }
+}
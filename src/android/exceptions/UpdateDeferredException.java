@@ -0,0 +1,36 @@
+package de.kolbasa.apkupdater.exceptions;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class UpdateDeferredException extends Exception implements DetailedException {
+
+    private final String reason;
+    private final long scheduledTime;
+    private final double bucket;
+
+    public UpdateDeferredException(String reason, long scheduledTime, double bucket, Exception cause) {
+        super(scheduledTime < 0 ? "Device is not part of the rollout" : "Update deferred until " + scheduledTime, cause);
+        this.reason = reason;
+        this.scheduledTime = scheduledTime;
+        this.bucket = bucket;
+    }
+
+    /**
+     * @return When the update may be downloaded or -1 if this device is not part of the rollout
+     */
+    public long getScheduledTime() {
+        return scheduledTime;
+    }
+
+    @Override
+    public JSONObject getDetails() throws JSONException {
+        JSONObject details = new JSONObject();
+        details.put("reason", reason);
+        details.put("scheduledTime", scheduledTime < 0 ? JSONObject.NULL : scheduledTime);
+        if (bucket >= 0) {
+            details.put("bucket", bucket);
+        }
+        return details;
+    }
+}
@@ -2,8 +2,10 @@ package de.kolbasa.apkupdater.tools;
 
 import android.app.PendingIntent;
 import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInstaller;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -15,29 +17,53 @@ import com.scottyab.rootbeer.RootBeer;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import de.kolbasa.apkupdater.exceptions.InstallationFailedException;
 import de.kolbasa.apkupdater.exceptions.InvalidPackageException;
 import de.kolbasa.apkupdater.exceptions.RootException;
+import de.kolbasa.apkupdater.exceptions.SignatureVerificationException;
 
 public class ApkInstaller {
 
+    private static final String INSTALL_STATUS_ACTION = ".apkupdater.INSTALL_STATUS.";
+    private static final long INSTALL_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    // cordova-android 10 and 11 compile against SDK 30 to 32, where these constants do not exist yet
+    private static final int SDK_S = 31;
+    private static final int SDK_TIRAMISU = 33;
+    private static final int FLAG_MUTABLE = 0x2000000; // PendingIntent.FLAG_MUTABLE
+    private static final int RECEIVER_NOT_EXPORTED = 0x4; // Context.RECEIVER_NOT_EXPORTED
+
     private static Uri getUpdate(Context context, File update) throws IOException {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             String fileProvider = context.getPackageName() + ".apkupdater.provider";
             return FileProvider.getUriForFile(context, fileProvider, update);
-        } else {
-            File externalPath = new File(context.getExternalCacheDir(), update.getName());
-            FileTools.copy(update, externalPath);
-            return Uri.fromFile(externalPath);
         }
+
+        // The installer can only read files on the external storage
+        File externalDir = context.getExternalCacheDir();
+        if (externalDir != null && update.getCanonicalPath().startsWith(externalDir.getCanonicalPath() + File.separator)) {
+            // Downloaded there in the first place, see UpdateManager.getInstance()
+            return Uri.fromFile(update);
+        }
+        File externalPath = new File(externalDir, update.getName());
+        FileTools.link(update, externalPath);
+        return Uri.fromFile(externalPath);
     }
 
-    public static void install(Context context, File update) throws IOException {
+    public static void install(Context context, File update) throws IOException, SignatureVerificationException,
+            InvalidPackageException {
+        // Before the user taps through the installer dialog
+        ApkSignature.verify(context, update);
+
         Intent intent;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             intent = new Intent(Intent.ACTION_INSTALL_PACKAGE);
@@ -80,7 +106,10 @@ public class ApkInstaller {
     }
 
     public static void rootInstall(Context context, File update) throws IOException,
-            PackageManager.NameNotFoundException, InvalidPackageException, RootException {
+            PackageManager.NameNotFoundException, InvalidPackageException, RootException,
+            SignatureVerificationException {
+        ApkSignature.verify(context, update);
+
         String packageName = context.getPackageName();
         Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(packageName);
         String mainActivity = launchIntent.getComponent().getClassName();
@@ -130,35 +159,97 @@ public class ApkInstaller {
         return mDPM.isDeviceOwnerApp(context.getPackageName());
     }
 
-    public static void ownerInstall(Context context, File update) throws IOException {
+    /**
+     * Writes the update into a new installer session.
+     *
+     * @return The id of the session, ready to be committed
+     */
+    private static int createOwnerSession(Context context, File update) throws IOException,
+            SignatureVerificationException, InvalidPackageException {
         if (!isDeviceOwner(context)) {
             throw new SecurityException("App is not device owner");
         }
+        ApkSignature.verify(context, update);
 
-        InputStream in = context.getContentResolver().openInputStream(getUpdate(context, update));
-
-        PackageManager pm = context.getPackageManager();
-        PackageInstaller pi = pm.getPackageInstaller();
+        PackageInstaller pi = context.getPackageManager().getPackageInstaller();
         PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
                 PackageInstaller.SessionParams.MODE_FULL_INSTALL);
 
         int sessionId = pi.createSession(params);
-        PackageInstaller.Session s = pi.openSession(sessionId);
-        OutputStream out = s.openWrite(update.getName(), 0, -1);
-        byte[] buffer = new byte[65536];
-        int chunk;
-        while ((chunk = in.read(buffer)) != -1) {
-            out.write(buffer, 0, chunk);
+        // Our own file, no need to expose it to the installer first
+        try (InputStream in = new FileInputStream(update);
+             PackageInstaller.Session s = pi.openSession(sessionId);
+             OutputStream out = s.openWrite(update.getName(), 0, -1)) {
+            byte[] buffer = new byte[65536];
+            int chunk;
+            while ((chunk = in.read(buffer)) != -1) {
+                out.write(buffer, 0, chunk);
+            }
+            s.fsync(out);
         }
-        s.fsync(out);
-        in.close();
-        out.close();
+        return sessionId;
+    }
+
+    public static void ownerInstall(Context context, File update) throws IOException,
+            SignatureVerificationException, InvalidPackageException {
+        int sessionId = createOwnerSession(context, update);
 
         PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0, new Intent(),
                 Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? PendingIntent.FLAG_IMMUTABLE : 0);
 
-        s.commit(pendingIntent.getIntentSender());
-        s.close();
+        try (PackageInstaller.Session s = context.getPackageManager().getPackageInstaller().openSession(sessionId)) {
+            s.commit(pendingIntent.getIntentSender());
+        }
+    }
+
+    /**
+     * Like {@link #ownerInstall}, but waits until the installer reports the result. Committing a session
+     * only queues it. Not for the own package, its installation ends the process before the result arrives.
+     */
+    public static void ownerInstallAndWait(Context context, File update) throws IOException,
+            SignatureVerificationException, InvalidPackageException, InstallationFailedException,
+            InterruptedException {
+        int sessionId = createOwnerSession(context, update);
+
+        String action = context.getPackageName() + INSTALL_STATUS_ACTION + sessionId;
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Intent> result = new AtomicReference<>();
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                result.set(intent);
+                done.countDown();
+            }
+        };
+
+        IntentFilter filter = new IntentFilter(action);
+        if (Build.VERSION.SDK_INT >= SDK_TIRAMISU) {
+            // The PendingIntent is sent as this app, the receiver does not have to be exported
+            context.registerReceiver(receiver, filter, RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(receiver, filter);
+        }
+        try {
+            // Mutable, the installer adds the status as extras
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(context, sessionId,
+                    new Intent(action).setPackage(context.getPackageName()),
+                    Build.VERSION.SDK_INT >= SDK_S ? FLAG_MUTABLE : 0);
+
+            try (PackageInstaller.Session s = context.getPackageManager().getPackageInstaller().openSession(sessionId)) {
+                s.commit(pendingIntent.getIntentSender());
+            }
+
+            if (!done.await(INSTALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new InstallationFailedException("No result from the package installer: " + update.getName());
+            }
+            int status = result.get().getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+            if (status != PackageInstaller.STATUS_SUCCESS) {
+                throw new InstallationFailedException("Installation of " + update.getName() + " failed with status "
+                        + status + ": " + result.get().getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE));
+            }
+        } finally {
+            context.unregisterReceiver(receiver);
+        }
     }
 
 }
@@ -0,0 +1,344 @@
+package de.kolbasa.apkupdater.tools;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.Signature;
+import android.os.Build;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.PublicKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.PSSParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import de.kolbasa.apkupdater.exceptions.InvalidPackageException;
+import de.kolbasa.apkupdater.exceptions.SignatureVerificationException;
+
+/**
+ * Checks the signer of an APK before it is handed to the installer.
+ * <p>
+ * Reads the APK Signature Scheme v2/v3 block through memory-mapped buffers, verifies the signature
+ * of each signer over its signed data and compares the SHA-256 of the signer certificate with the
+ * pinned digests. Pins only apply to the own package of the app, for other packages and without pins
+ * the certificates of the installed version of the package are used. APKs with only a v1 (JAR) signature
+ * are compared by the certificates that the package manager reads from the archive.
+ * The digests of the file contents are not recomputed, the installer still does that; this check only
+ * has to read a few kilobytes at the end of the file, so a wrongly signed APK fails in milliseconds.
+ */
+public class ApkSignature {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final long BLOCK_MAGIC_LO = 0x20676953204b5041L;
+    private static final long BLOCK_MAGIC_HI = 0x3234206b636f6c42L;
+    private static final int BLOCK_FOOTER_SIZE = 24;
+
+    private static final int V2_BLOCK_ID = 0x7109871a;
+    private static final int V3_BLOCK_ID = 0xf05368c0;
+
+    private static final Set<String> pinned = new CopyOnWriteArraySet<>();
+
+    /**
+     * Replaces the pinned certificate digests (SHA-256, hex) of the own package. Several digests allow
+     * a key rotation.
+     */
+    public static void pin(Collection<String> digests) {
+        Set<String> normalized = new LinkedHashSet<>();
+        for (String digest : digests) {
+            String hex = digest.replace(":", "").trim().toLowerCase();
+            if (!hex.isEmpty()) {
+                normalized.add(hex);
+            }
+        }
+        pinned.retainAll(normalized);
+        pinned.addAll(normalized);
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) throws SignatureVerificationException {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new SignatureVerificationException("Malformed signing block");
+        }
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        slice.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(buffer.position() + length);
+        return slice;
+    }
+
+    private static ByteBuffer getLengthPrefixed(ByteBuffer buffer) throws SignatureVerificationException {
+        if (buffer.remaining() < 4) {
+            throw new SignatureVerificationException("Malformed signing block");
+        }
+        return slice(buffer, buffer.getInt());
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) throws SignatureVerificationException {
+        ByteBuffer slice = getLengthPrefixed(buffer);
+        byte[] bytes = new byte[slice.remaining()];
+        slice.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * @return The values of the v2 and the v3 scheme, either may be null. null if there is no signing block.
+     */
+    private static ByteBuffer[] findSchemeBlocks(FileChannel channel) throws IOException, SignatureVerificationException {
+        long size = channel.size();
+        int tailSize = (int) Math.min(size, EOCD_MIN_SIZE + MAX_COMMENT_SIZE);
+        if (tailSize < EOCD_MIN_SIZE) {
+            throw new SignatureVerificationException("Not a zip file");
+        }
+        ByteBuffer tail = map(channel, size - tailSize, tailSize);
+
+        int eocd = -1;
+        for (int i = tailSize - EOCD_MIN_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE && (tail.getShort(i + 20) & 0xffff) == tailSize - i - EOCD_MIN_SIZE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new SignatureVerificationException("Not a zip file");
+        }
+
+        long centralDirectory = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (centralDirectory < BLOCK_FOOTER_SIZE || centralDirectory > size - tailSize + eocd) {
+            return null;
+        }
+
+        ByteBuffer footer = map(channel, centralDirectory - BLOCK_FOOTER_SIZE, BLOCK_FOOTER_SIZE);
+        long blockSize = footer.getLong(0);
+        if (footer.getLong(8) != BLOCK_MAGIC_LO || footer.getLong(16) != BLOCK_MAGIC_HI) {
+            return null;
+        }
+        if (blockSize < BLOCK_FOOTER_SIZE || blockSize > centralDirectory - 8 || blockSize > Integer.MAX_VALUE) {
+            throw new SignatureVerificationException("Malformed signing block");
+        }
+
+        // Size, pairs of (length, id, value), size again and the magic
+        long blockStart = centralDirectory - blockSize - 8;
+        ByteBuffer block = map(channel, blockStart, blockSize + 8 - BLOCK_FOOTER_SIZE);
+        if (block.getLong() != blockSize) {
+            throw new SignatureVerificationException("Malformed signing block");
+        }
+
+        ByteBuffer v2 = null;
+        ByteBuffer v3 = null;
+        while (block.remaining() >= 12) {
+            long length = block.getLong();
+            if (length < 4 || length > block.remaining()) {
+                throw new SignatureVerificationException("Malformed signing block");
+            }
+            int id = block.getInt();
+            ByteBuffer value = slice(block, (int) (length - 4));
+            if (id == V2_BLOCK_ID) {
+                v2 = value;
+            } else if (id == V3_BLOCK_ID) {
+                v3 = value;
+            }
+        }
+        return new ByteBuffer[]{v2, v3};
+    }
+
+    private static String getAlgorithm(int id) {
+        switch (id) {
+            case 0x0101:
+                return "SHA256withRSA/PSS";
+            case 0x0102:
+                return "SHA512withRSA/PSS";
+            case 0x0103:
+                return "SHA256withRSA";
+            case 0x0104:
+                return "SHA512withRSA";
+            case 0x0201:
+                return "SHA256withECDSA";
+            case 0x0202:
+                return "SHA512withECDSA";
+            case 0x0301:
+                return "SHA256withDSA";
+            default:
+                // e.g. the verity variants, they always come with one of the above
+                return null;
+        }
+    }
+
+    private static void verifySignature(int algorithmId, PublicKey key, ByteBuffer signedData, byte[] signature)
+            throws Exception {
+        java.security.Signature verifier = java.security.Signature.getInstance(getAlgorithm(algorithmId));
+        verifier.initVerify(key);
+        if (algorithmId == 0x0101) {
+            verifier.setParameter(new PSSParameterSpec("SHA-256", "MGF1", MGF1ParameterSpec.SHA256, 32, 1));
+        } else if (algorithmId == 0x0102) {
+            verifier.setParameter(new PSSParameterSpec("SHA-512", "MGF1", MGF1ParameterSpec.SHA512, 64, 1));
+        }
+        verifier.update(signedData.duplicate());
+        if (!verifier.verify(signature)) {
+            throw new SignatureVerificationException("Invalid signature");
+        }
+    }
+
+    /**
+     * @return The certificate of the signer after its signature has been verified.
+     */
+    private static X509Certificate verifySigner(ByteBuffer signer, boolean v3) throws Exception {
+        ByteBuffer signedData = getLengthPrefixed(signer);
+        if (v3) {
+            int minSdk = signer.getInt();
+            int maxSdk = signer.getInt();
+            if (Build.VERSION.SDK_INT < minSdk || Build.VERSION.SDK_INT > maxSdk) {
+                return null;
+            }
+        }
+        ByteBuffer signatures = getLengthPrefixed(signer);
+        byte[] publicKey = getBytes(signer);
+
+        ByteBuffer data = signedData.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        getLengthPrefixed(data);
+        ByteBuffer certificates = getLengthPrefixed(data);
+        if (!certificates.hasRemaining()) {
+            throw new SignatureVerificationException("No certificate");
+        }
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(getBytes(certificates)));
+        if (!Arrays.equals(certificate.getPublicKey().getEncoded(), publicKey)) {
+            throw new SignatureVerificationException("Public key does not match the certificate");
+        }
+
+        int verified = 0;
+        while (signatures.hasRemaining()) {
+            ByteBuffer signature = getLengthPrefixed(signatures);
+            int algorithmId = signature.getInt();
+            byte[] bytes = getBytes(signature);
+            if (getAlgorithm(algorithmId) != null) {
+                verifySignature(algorithmId, certificate.getPublicKey(), signedData, bytes);
+                verified++;
+            }
+        }
+        if (verified == 0) {
+            throw new SignatureVerificationException("No supported signature");
+        }
+        return certificate;
+    }
+
+    /**
+     * @return The SHA-256 of the certificate of each signer, after their signatures have been verified.
+     * Empty if the APK has no v2/v3 signature the platform would use, i.e. only a v1 (JAR) signature.
+     */
+    public static List<String> getCertificateDigests(File apk) throws IOException, SignatureVerificationException {
+        try (RandomAccessFile raf = new RandomAccessFile(apk, "r"); FileChannel channel = raf.getChannel()) {
+            ByteBuffer[] blocks = findSchemeBlocks(channel);
+            // The platform uses v3 where it supports it, otherwise v2
+            boolean v3 = blocks != null && blocks[1] != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+            ByteBuffer scheme = blocks == null ? null : blocks[v3 ? 1 : 0];
+            if (scheme == null) {
+                return new ArrayList<>();
+            }
+
+            List<String> digests = new ArrayList<>();
+            ByteBuffer signers = getLengthPrefixed(scheme);
+            while (signers.hasRemaining()) {
+                X509Certificate certificate = verifySigner(getLengthPrefixed(signers), v3);
+                if (certificate != null) {
+                    digests.add(FileTools.toHex(FileTools.sha256().digest(certificate.getEncoded())));
+                }
+            }
+            if (digests.isEmpty()) {
+                throw new SignatureVerificationException("No signer for this platform version");
+            }
+            return digests;
+        } catch (SignatureVerificationException | IOException e) {
+            throw e;
+        } catch (BufferUnderflowException e) {
+            throw new SignatureVerificationException("Malformed signing block");
+        } catch (Exception e) {
+            throw new SignatureVerificationException(e.getClass().getSimpleName() + " " + e.getMessage());
+        }
+    }
+
+    private static List<String> toDigests(Signature[] signatures) {
+        List<String> digests = new ArrayList<>();
+        if (signatures != null) {
+            for (Signature signature : signatures) {
+                digests.add(FileTools.toHex(FileTools.sha256().digest(signature.toByteArray())));
+            }
+        }
+        return digests;
+    }
+
+    private static List<String> getInstalledDigests(PackageManager packageManager, String packageName) {
+        try {
+            // noinspection deprecation: GET_SIGNING_CERTIFICATES requires API 28
+            return toDigests(packageManager.getPackageInfo(packageName, PackageManager.GET_SIGNATURES).signatures);
+        } catch (PackageManager.NameNotFoundException e) {
+            // Not installed, nothing to compare with
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * @param installed Digests of the installed version of the package, empty if it is not installed
+     * @return The digests the APK must be signed with, empty if anything goes
+     */
+    static Collection<String> getExpectedDigests(String packageName, String ownPackageName,
+                                                 Collection<String> installed) {
+        return packageName.equals(ownPackageName) && !pinned.isEmpty() ? pinned : installed;
+    }
+
+    static void check(List<String> digests, Collection<String> expected) throws SignatureVerificationException {
+        for (String digest : digests) {
+            if (expected.contains(digest)) {
+                return;
+            }
+        }
+        throw new SignatureVerificationException(digests, new ArrayList<>(expected));
+    }
+
+    public static void verify(Context context, File apk)
+            throws IOException, SignatureVerificationException, InvalidPackageException {
+        PackageManager packageManager = context.getPackageManager();
+        // noinspection deprecation: the archive certificates are only needed for v1 signatures
+        PackageInfo archive = packageManager.getPackageArchiveInfo(apk.getCanonicalPath(),
+                PackageManager.GET_SIGNATURES);
+        if (archive == null) {
+            throw new InvalidPackageException(apk.getName() + " (size=" + apk.length() + ")");
+        }
+
+        Collection<String> expected = getExpectedDigests(archive.packageName, context.getPackageName(),
+                getInstalledDigests(packageManager, archive.packageName));
+        if (expected.isEmpty()) {
+            return;
+        }
+        List<String> digests = getCertificateDigests(apk);
+        if (digests.isEmpty()) {
+            // v1 only, the package manager has verified the JAR signature while reading the archive
+            digests = toDigests(archive.signatures);
+            if (digests.isEmpty()) {
+                throw new SignatureVerificationException("APK is not signed");
+            }
+        }
+        check(digests, expected);
+    }
+
+}
@@ -0,0 +1,106 @@
+package de.kolbasa.apkupdater.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The archive formats an update can be packed in. The format is detected by the magic bytes at the start
+ * of the file, the file extension is only used to estimate the required space before the download.
+ */
+public enum ArchiveFormat {
+
+    ZIP(0, new byte[]{0x50, 0x4b, 0x03, 0x04}, "zip") {
+        @Override
+        Extractor createExtractor(String password) {
+            return new ZipExtractor(password);
+        }
+    },
+    ZSTD(0, new byte[]{0x28, (byte) 0xb5, 0x2f, (byte) 0xfd}, "zst", "tzst") {
+        @Override
+        Extractor createExtractor(String password) {
+            return new StreamExtractor(this);
+        }
+    },
+    XZ(0, new byte[]{(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00}, "xz", "txz") {
+        @Override
+        Extractor createExtractor(String password) {
+            return new StreamExtractor(this);
+        }
+    },
+    TAR(257, new byte[]{0x75, 0x73, 0x74, 0x61, 0x72}, "tar") { // "ustar"
+        @Override
+        Extractor createExtractor(String password) {
+            return new StreamExtractor(this);
+        }
+    };
+
+    /**
+     * The size of a tar header, enough to see the magic bytes of every format.
+     */
+    static final int HEADER_BYTES = 512;
+
+    private final int offset;
+    private final byte[] magic;
+    private final String[] extensions;
+
+    ArchiveFormat(int offset, byte[] magic, String... extensions) {
+        this.offset = offset;
+        this.magic = magic;
+        this.extensions = extensions;
+    }
+
+    abstract Extractor createExtractor(String password);
+
+    String[] getExtensions() {
+        return extensions;
+    }
+
+    boolean matches(byte[] header, int length) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The format of the file or null if it is none of the supported archives
+     */
+    public static ArchiveFormat detect(File file) throws IOException {
+        byte[] header = new byte[HEADER_BYTES];
+        int length = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while (length < header.length && (read = in.read(header, length, header.length - length)) != -1) {
+                length += read;
+            }
+        }
+        for (ArchiveFormat format : values()) {
+            if (format.matches(header, length)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The format the file name suggests or null
+     */
+    public static ArchiveFormat fromFileName(File file) {
+        for (ArchiveFormat format : values()) {
+            for (String extension : format.extensions) {
+                if (FileTools.isType(file, extension)) {
+                    return format;
+                }
+            }
+        }
+        return null;
+    }
+
+}
@@ -1,46 +1,92 @@
 package de.kolbasa.apkupdater.tools;
 
-import net.lingala.zip4j.ZipFile;
-import net.lingala.zip4j.progress.ProgressMonitor;
-
 import java.io.File;
+import java.io.IOException;
 import java.util.Observable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.kolbasa.apkupdater.downloader.Progress;
 
+/**
+ * Extracts an update archive next to itself. The format is detected by its magic bytes (see {@link ArchiveFormat}),
+ * progress is reported in extracted bytes.
+ */
 public class ArchiveManager extends Observable {
 
     private static final int BROADCAST_LOCK_MILLIS = 50;
 
+    private static final String APK = "apk";
+
     private void broadcast(Progress progress) {
         setChanged();
         notifyObservers(progress);
     }
 
-    public void extract(File archive, String password) throws Exception {
-
-        ZipFile zipFile = new ZipFile(archive, password == null ? null : password.toCharArray());
-        zipFile.setRunInThread(true);
-        ProgressMonitor progressMonitor = zipFile.getProgressMonitor();
-
-        long size = archive.length();
-
-        Progress progress = new Progress(size, true);
+    /**
+     * An APK is a zip file as well, it is never extracted. A file with the extension of an archive is
+     * treated as one even if its content is not recognized, so that it fails with a clear error.
+     */
+    public static boolean isArchive(File file) throws IOException {
+        if (FileTools.isType(file, APK)) {
+            return false;
+        }
+        return ArchiveFormat.detect(file) != null || ArchiveFormat.fromFileName(file) != null;
+    }
 
-        zipFile.extractAll(archive.getParent());
+    public void extract(File archive, String password) throws Exception {
 
-        while (!progressMonitor.getState().equals(ProgressMonitor.State.READY)) {
-            progress.setBytesWritten((long) Math.ceil(size / 100f * progressMonitor.getPercentDone()));
-            broadcast(progress);
-            //noinspection BusyWait
-            Thread.sleep(BROADCAST_LOCK_MILLIS);
+        ArchiveFormat format = ArchiveFormat.detect(archive);
+        if (format == null) {
+            throw new IOException("Unknown archive format: " + archive.getName());
+        }
+        Extractor extractor = format.createExtractor(password);
+
+        File destination = archive.getParentFile();
+        AtomicLong size = new AtomicLong(-1);
+        AtomicLong bytesWritten = new AtomicLong();
+        Progress progress = new Progress(-1, true);
+        long startMillis = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Void> task = executor.submit(() -> {
+                extractor.extract(archive, destination, size, bytesWritten);
+                return null;
+            });
+            while (true) {
+                try {
+                    task.get(BROADCAST_LOCK_MILLIS, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    if (progress.isIndeterminate() && size.get() >= 0) {
+                        progress.setBytes(size.get());
+                    }
+                    progress.setBytesWritten(bytesWritten.get());
+                    broadcast(progress);
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+            Metrics.add(Metrics.EXTRACTED_BYTES, bytesWritten.get());
         }
 
-        if (progressMonitor.getResult().equals(ProgressMonitor.Result.ERROR)) {
-            throw progressMonitor.getException();
+        long extracted = bytesWritten.get();
+        if (extracted > 0) {
+            Metrics.record(Metrics.EXTRACT_MILLIS_PER_MB, (System.currentTimeMillis() - startMillis) * 1024 * 1024 / extracted);
         }
 
-        progress.setBytesWritten(size);
+        progress.setBytes(extracted);
         broadcast(progress);
 
     }
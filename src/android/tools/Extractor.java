@@ -0,0 +1,17 @@
+package de.kolbasa.apkupdater.tools;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Extracts one archive format, see {@link ArchiveFormat}.
+ */
+interface Extractor {
+
+    /**
+     * @param size         Set to the extracted size as soon as it is known, stays -1 otherwise
+     * @param bytesWritten Counts the extracted bytes while the extractor runs
+     */
+    void extract(File archive, File destination, AtomicLong size, AtomicLong bytesWritten) throws Exception;
+
+}
@@ -1,16 +1,60 @@
 package de.kolbasa.apkupdater.tools;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
+import de.kolbasa.apkupdater.exceptions.InsufficientStorageException;
+
 public class FileTools {
 
+    private static final int TRANSFER_BUFFER_BYTES = 256 * 1024;
+
+    /**
+     * The system calls that have no equivalent in java.io.
+     */
+    public interface SystemCalls {
+        void link(String oldPath, String newPath) throws ErrnoException;
+
+        void fallocate(FileDescriptor fd, long offset, long length) throws ErrnoException;
+    }
+
+    private static final SystemCalls ANDROID = new SystemCalls() {
+        @Override
+        public void link(String oldPath, String newPath) throws ErrnoException {
+            Os.link(oldPath, newPath);
+        }
+
+        @Override
+        public void fallocate(FileDescriptor fd, long offset, long length) throws ErrnoException {
+            Os.posix_fallocate(fd, offset, length);
+        }
+    };
+
+    private static volatile SystemCalls systemCalls = ANDROID;
+
+    /**
+     * For the unit tests, which run on a plain JVM without the native part of {@link Os}.
+     */
+    public static void setSystemCalls(SystemCalls calls) {
+        systemCalls = calls != null ? calls : ANDROID;
+    }
+
     public static void delete(File fileToDelete) {
         if (!fileToDelete.exists()) {
             return;
@@ -61,15 +105,166 @@ public class FileTools {
         }
     }
 
+    /**
+     * Copies in the kernel with {@link FileChannel#transferTo}. If the channel does not support it,
+     * the rest is copied through a large direct buffer.
+     */
     public static void copy(File src, File dst) throws IOException {
-        try (InputStream in = new FileInputStream(src)) {
-            try (OutputStream out = new FileOutputStream(dst)) {
-                byte[] buf = new byte[1024];
-                int len;
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
+        try (FileInputStream in = new FileInputStream(src); FileOutputStream out = new FileOutputStream(dst)) {
+            FileChannel source = in.getChannel();
+            FileChannel target = out.getChannel();
+
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = source.transferTo(position, size - position, target);
+                if (transferred <= 0) {
+                    break;
                 }
+                position += transferred;
+            }
+
+            if (position < size) {
+                source.position(position);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_BYTES);
+                while (source.read(buffer) > 0) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    private static void createParent(File file) {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists()) {
+            // noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+    }
+
+    /**
+     * Renames the file if source and target are on the same file system, otherwise it is copied
+     * and the source is deleted.
+     */
+    public static void move(File src, File dst) throws IOException {
+        createParent(dst);
+        if (dst.exists()) {
+            // noinspection ResultOfMethodCallIgnored
+            dst.delete();
+        }
+        if (src.renameTo(dst)) {
+            return;
+        }
+        copy(src, dst);
+        // noinspection ResultOfMethodCallIgnored
+        src.delete();
+    }
+
+    /**
+     * Hard links the file if possible, otherwise it is copied.
+     */
+    public static void link(File src, File dst) throws IOException {
+        createParent(dst);
+        try {
+            systemCalls.link(src.getPath(), dst.getPath());
+        } catch (ErrnoException e) {
+            copy(src, dst);
+        }
+    }
+
+    public static String read(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            int len;
+            while (offset < data.length && (len = in.read(data, offset, data.length - offset)) > 0) {
+                offset += len;
             }
+            return new String(data, 0, offset, Charset.forName("UTF-8"));
+        }
+    }
+
+    /**
+     * Writes to a temporary file first and renames it afterwards,
+     * so readers either see the old or the new content, never a torn write.
+     */
+    public static void writeAtomically(File file, String content) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(content.getBytes(Charset.forName("UTF-8")));
+            out.flush();
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            // noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Could not rename " + tmp.getName() + " to " + file.getName());
+        }
+    }
+
+    public static void checkFreeSpace(File dir, long requiredBytes) throws InsufficientStorageException {
+        long availableBytes = dir.getUsableSpace();
+        if (requiredBytes > availableBytes) {
+            throw new InsufficientStorageException(requiredBytes, availableBytes);
+        }
+    }
+
+    /**
+     * Reserves the blocks for the given range up front. This keeps the file less fragmented
+     * and makes a full disk fail immediately instead of somewhere in the middle of a write.
+     */
+    public static void preallocate(File file, RandomAccessFile raf, long offset, long length)
+            throws IOException, InsufficientStorageException {
+        if (length <= 0) {
+            return;
+        }
+        try {
+            systemCalls.fallocate(raf.getFD(), offset, length);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new InsufficientStorageException(length, file.getUsableSpace());
+            }
+            // Not supported by the file system, the blocks will be allocated while writing
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The lowercase hex encoded SHA-256 of the stream. The stream is not closed.
+     */
+    public static String sha256(InputStream in) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buf = new byte[64 * 1024];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            digest.update(buf, 0, len);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String sha256(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return sha256(in);
         }
     }
 
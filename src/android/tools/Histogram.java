@@ -0,0 +1,69 @@
+package de.kolbasa.apkupdater.tools;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with fixed upper bucket bounds. The last bucket counts everything above the highest bound.
+ */
+public class Histogram {
+
+    private final long[] bounds;
+    private final AtomicLongArray buckets;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+
+    public Histogram(long... bounds) {
+        this.bounds = bounds;
+        this.buckets = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+    }
+
+    /**
+     * Adds the values of a persisted histogram, as long as it used the same bounds.
+     */
+    void restore(JSONObject json) throws JSONException {
+        JSONArray counts = json.getJSONArray("counts");
+        if (counts.length() != buckets.length()) {
+            return;
+        }
+        for (int i = 0; i < counts.length(); i++) {
+            buckets.addAndGet(i, counts.getLong(i));
+        }
+        count.addAndGet(json.getLong("count"));
+        sum.addAndGet(json.getLong("sum"));
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONArray bounds = new JSONArray();
+        for (long bound : this.bounds) {
+            bounds.put(bound);
+        }
+        JSONArray counts = new JSONArray();
+        for (int i = 0; i < buckets.length(); i++) {
+            counts.put(buckets.get(i));
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("bounds", bounds);
+        json.put("counts", counts);
+        json.put("count", count.get());
+        json.put("sum", sum.get());
+        json.put("mean", count.get() == 0 ? 0 : sum.get() / count.get());
+        return json;
+    }
+
+}
@@ -0,0 +1,167 @@
+package de.kolbasa.apkupdater.tools;
+
+import android.content.Context;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cumulative metrics of this device. Counters and histograms are updated without locks
+ * and persisted as one small JSON file at the end of each operation.
+ */
+public class Metrics {
+
+    public static final String DOWNLOADS = "downloads";
+    public static final String DOWNLOAD_BYTES = "downloadBytes";
+    public static final String REUSED_BYTES = "reusedBytes";
+    public static final String PEER_BYTES = "peerBytes";
+    public static final String IMPORTS = "imports";
+    public static final String IMPORTED_BYTES = "importedBytes";
+    public static final String RESUMED_DOWNLOADS = "resumedDownloads";
+    public static final String RETRIES = "retries";
+    public static final String EXTRACTED_BYTES = "extractedBytes";
+    public static final String INSTALLS = "installs";
+
+    public static final String DOWNLOAD_KBPS = "downloadKBps";
+    public static final String EXTRACT_MILLIS_PER_MB = "extractMillisPerMB";
+    public static final String INSTALL_MILLIS = "installMillis";
+
+    private static final String FILE_NAME = "apkupdater-metrics.json";
+
+    private static final String COUNTERS = "counters";
+    private static final String HISTOGRAMS = "histograms";
+    private static final String FAILURES = "failures";
+
+    private static final long[] KBPS_BOUNDS = {64, 256, 1024, 4096, 16384, 65536};
+    private static final long[] MILLIS_BOUNDS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private static final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, AtomicLong> failures = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private static File file;
+
+    private static AtomicLong get(ConcurrentHashMap<String, AtomicLong> map, String name) {
+        AtomicLong counter = map.get(name);
+        if (counter == null) {
+            map.putIfAbsent(name, new AtomicLong());
+            counter = map.get(name);
+        }
+        return counter;
+    }
+
+    private static Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            long[] bounds = name.equals(DOWNLOAD_KBPS) ? KBPS_BOUNDS : MILLIS_BOUNDS;
+            histograms.putIfAbsent(name, new Histogram(bounds));
+            histogram = histograms.get(name);
+        }
+        return histogram;
+    }
+
+    public static void init(Context context) {
+        init(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Loads the persisted metrics once per process.
+     */
+    public static synchronized void init(File file) {
+        if (Metrics.file != null) {
+            return;
+        }
+        Metrics.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(FileTools.read(file));
+            restore(json.getJSONObject(COUNTERS), counters);
+            restore(json.getJSONObject(FAILURES), failures);
+            JSONObject saved = json.getJSONObject(HISTOGRAMS);
+            Iterator<String> names = saved.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                getHistogram(name).restore(saved.getJSONObject(name));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void restore(JSONObject json, ConcurrentHashMap<String, AtomicLong> map) throws JSONException {
+        Iterator<String> names = json.keys();
+        while (names.hasNext()) {
+            String name = names.next();
+            get(map, name).addAndGet(json.getLong(name));
+        }
+    }
+
+    public static void add(String counter, long value) {
+        get(counters, counter).addAndGet(value);
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void record(String histogram, long value) {
+        getHistogram(histogram).record(value);
+    }
+
+    /**
+     * Counts failures by exception type.
+     */
+    public static void recordFailure(Exception e) {
+        get(failures, e.getClass().getSimpleName()).incrementAndGet();
+    }
+
+    public static synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        try {
+            FileTools.writeAtomically(file, toJSON().toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static synchronized void reset() {
+        counters.clear();
+        failures.clear();
+        histograms.clear();
+        if (file != null) {
+            // noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static JSONObject toJSON(Map<String, AtomicLong> map) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : map.entrySet()) {
+            json.put(entry.getKey(), entry.getValue().get());
+        }
+        return json;
+    }
+
+    public static JSONObject toJSON() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put(COUNTERS, toJSON(counters));
+        json.put(FAILURES, toJSON(failures));
+        JSONObject histograms = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : Metrics.histograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().toJSON());
+        }
+        json.put(HISTOGRAMS, histograms);
+        return json;
+    }
+
+}
@@ -4,10 +4,16 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 
+import de.kolbasa.apkupdater.update.UpdateTimeline;
+
 public class PackageReplacedReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
-        if (intent.getAction().equals(Intent.ACTION_MY_PACKAGE_REPLACED) && ApkInstaller.isDeviceOwner(context)) {
+        if (!Intent.ACTION_MY_PACKAGE_REPLACED.equals(intent.getAction())) {
+            return;
+        }
+        UpdateTimeline.mark(context, UpdateTimeline.PACKAGE_REPLACED);
+        if (ApkInstaller.isDeviceOwner(context)) {
             String packageName = context.getPackageName();
             Intent launchIntent = context.getPackageManager().getLaunchIntentForPackage(packageName);
             launchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
@@ -6,6 +6,8 @@ import org.json.JSONObject;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 
+import de.kolbasa.apkupdater.exceptions.DetailedException;
+
 public class StackExtractor {
 
     public static JSONObject format(Exception exception) {
@@ -23,6 +25,15 @@ public class StackExtractor {
 
             error.put("message", message);
             error.put("stack", stack);
+
+            Throwable cause = exception;
+            while (cause != null) {
+                if (cause instanceof DetailedException) {
+                    error.put("details", ((DetailedException) cause).getDetails());
+                    break;
+                }
+                cause = cause.getCause();
+            }
         } catch (JSONException e) {
             e.printStackTrace();
         }
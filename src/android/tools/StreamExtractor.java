@@ -0,0 +1,202 @@
+package de.kolbasa.apkupdater.tools;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.kolbasa.apkupdater.exceptions.InsufficientStorageException;
+
+/**
+ * Extracts zstd and xz compressed files and tar archives in a single pass over the file.
+ * <p>
+ * A compressed stream that contains a tar archive (.tar.zst, .tar.xz) is unpacked, any other content
+ * is written to a single file named after the archive without its extension (update.apk.zst -> update.apk).
+ * The extracted size is known up front for xz (from the index) and for zstd if the encoder stored the frame
+ * content size, otherwise progress is only reported as bytes.
+ */
+class StreamExtractor implements Extractor {
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int ZSTD_FRAME_HEADER_BYTES = 18;
+
+    private final ArchiveFormat format;
+
+    StreamExtractor(ArchiveFormat format) {
+        this.format = format;
+    }
+
+    private static long getZstdSize(File archive) throws IOException {
+        byte[] header = new byte[ZSTD_FRAME_HEADER_BYTES];
+        int length;
+        try (InputStream in = new FileInputStream(archive)) {
+            length = in.read(header);
+        }
+        if (length < header.length) {
+            return -1;
+        }
+        long size = Zstd.decompressedSize(header);
+        return size > 0 ? size : -1;
+    }
+
+    private static long getXzSize(File archive) {
+        try (SeekableXZInputStream in = new SeekableXZInputStream(new SeekableFileInputStream(archive))) {
+            return in.length();
+        } catch (IOException e) {
+            // The stream itself will report the error
+            return -1;
+        }
+    }
+
+    private long getSize(File archive) throws IOException {
+        switch (format) {
+            case ZSTD:
+                return getZstdSize(archive);
+            case XZ:
+                return getXzSize(archive);
+            default:
+                // An uncompressed tar is not much larger than its content
+                return archive.length();
+        }
+    }
+
+    private InputStream open(File archive) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(archive), BUFFER_BYTES);
+        try {
+            switch (format) {
+                case ZSTD:
+                    return new ZstdInputStream(in);
+                case XZ:
+                    return new XZInputStream(in);
+                default:
+                    return in;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static File getTarget(File destination, String name) throws IOException {
+        File target = new File(destination, name);
+        String destinationPath = destination.getCanonicalPath() + File.separator;
+        if (!target.getCanonicalPath().startsWith(destinationPath)) {
+            throw new IOException("Illegal file name: " + name);
+        }
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) {
+            // noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+        return target;
+    }
+
+    private String getSingleFileName(File archive) throws IOException {
+        String name = archive.getName();
+        for (String extension : format.getExtensions()) {
+            if (FileTools.isType(archive, extension)) {
+                return name.substring(0, name.length() - extension.length() - 1);
+            }
+        }
+        throw new IOException("Cannot name the content of " + name);
+    }
+
+    private static long copy(InputStream in, File target, long length, byte[] buffer, AtomicLong bytesWritten)
+            throws IOException, InsufficientStorageException {
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(0);
+            FileTools.preallocate(target, raf, 0, length);
+
+            long copied = 0;
+            int len;
+            while ((length < 0 || copied < length) && (len = in.read(buffer, 0,
+                    length < 0 ? buffer.length : (int) Math.min(buffer.length, length - copied))) != -1) {
+                raf.write(buffer, 0, len);
+                copied += len;
+                bytesWritten.addAndGet(len);
+            }
+            if (length >= 0 && copied < length) {
+                throw new IOException("Unexpected end of archive: " + target.getName());
+            }
+            raf.setLength(copied);
+            return copied;
+        }
+    }
+
+    private static void extractTar(InputStream in, File destination, boolean checkSpace, List<File> created,
+                                   AtomicLong bytesWritten) throws IOException, InsufficientStorageException {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        TarArchiveInputStream tar = new TarArchiveInputStream(in);
+        TarArchiveEntry entry;
+        while ((entry = tar.getNextTarEntry()) != null) {
+            if (entry.isSymbolicLink() || entry.isLink() || entry.isCharacterDevice() || entry.isBlockDevice()
+                    || entry.isFIFO()) {
+                // Links and devices have no place in an update. isFile() alone does not exclude them,
+                // it is true for every entry whose name does not end with a slash.
+                continue;
+            }
+            if (entry.isDirectory()) {
+                // noinspection ResultOfMethodCallIgnored
+                getTarget(destination, entry.getName()).mkdirs();
+            } else if (entry.isFile()) {
+                if (checkSpace) {
+                    FileTools.checkFreeSpace(destination, entry.getSize());
+                }
+                File target = getTarget(destination, entry.getName());
+                created.add(target);
+                copy(tar, target, entry.getSize(), buffer, bytesWritten);
+            }
+        }
+    }
+
+    @Override
+    public void extract(File archive, File destination, AtomicLong size, AtomicLong bytesWritten) throws Exception {
+        long expectedSize = getSize(archive);
+        if (expectedSize >= 0) {
+            FileTools.checkFreeSpace(destination, expectedSize);
+            size.set(expectedSize);
+        }
+
+        List<File> created = new ArrayList<>();
+        try (InputStream in = new BufferedInputStream(open(archive), BUFFER_BYTES)) {
+            // The first block of the content tells whether it is a tar archive
+            in.mark(ArchiveFormat.HEADER_BYTES);
+            byte[] header = new byte[ArchiveFormat.HEADER_BYTES];
+            int length = 0;
+            int read;
+            while (length < header.length && (read = in.read(header, length, header.length - length)) != -1) {
+                length += read;
+            }
+            in.reset();
+
+            if (format == ArchiveFormat.TAR || ArchiveFormat.TAR.matches(header, length)) {
+                extractTar(in, destination, expectedSize < 0, created, bytesWritten);
+            } else {
+                File target = getTarget(destination, getSingleFileName(archive));
+                created.add(target);
+                copy(in, target, -1, new byte[BUFFER_BYTES], bytesWritten);
+            }
+        } catch (Exception e) {
+            for (File file : created) {
+                // noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            throw e;
+        }
+    }
+
+}
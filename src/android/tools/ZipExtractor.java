@@ -0,0 +1,221 @@
+package de.kolbasa.apkupdater.tools;
+
+import net.lingala.zip4j.ZipFile;
+import net.lingala.zip4j.exception.ZipException;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.enums.CompressionMethod;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Extracts zip archives with zip4j. Entries are extracted in parallel, stored entries are copied by the kernel.
+ */
+class ZipExtractor implements Extractor {
+
+    private static final int LOCAL_FILE_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_FILE_HEADER_LENGTH = 30;
+    private static final int TRANSFER_CHUNK_BYTES = 8 * 1024 * 1024;
+    private static final int CRC_BUFFER_BYTES = 256 * 1024;
+    private static final int STREAM_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_WORKERS = 4;
+
+    private final char[] password;
+
+    ZipExtractor(String password) {
+        this.password = password == null ? null : password.toCharArray();
+    }
+
+    private static File getTarget(File destination, FileHeader fileHeader) throws IOException {
+        File target = new File(destination, fileHeader.getFileName());
+        String destinationPath = destination.getCanonicalPath() + File.separator;
+        if (!target.getCanonicalPath().startsWith(destinationPath)) {
+            throw new ZipException("Illegal file name: " + fileHeader.getFileName());
+        }
+        return target;
+    }
+
+    /**
+     * Stored entries are the raw file bytes at a fixed position in the archive.
+     * They can be copied by the kernel without passing through zip4j's streams.
+     */
+    private static boolean isStored(FileHeader fileHeader) {
+        return !fileHeader.isDirectory() && !fileHeader.isEncrypted()
+                && fileHeader.getCompressionMethod() == CompressionMethod.STORE
+                && fileHeader.getCompressedSize() == fileHeader.getUncompressedSize();
+    }
+
+    private static long getDataOffset(FileChannel archive, FileHeader fileHeader) throws IOException {
+        ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_FILE_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = fileHeader.getOffsetLocalHeader();
+        while (localHeader.hasRemaining()) {
+            if (archive.read(localHeader, offset + localHeader.position()) < 0) {
+                throw new ZipException("Unexpected end of archive: " + fileHeader.getFileName());
+            }
+        }
+        if (localHeader.getInt(0) != LOCAL_FILE_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local file header: " + fileHeader.getFileName());
+        }
+        int fileNameLength = localHeader.getShort(26) & 0xffff;
+        int extraFieldLength = localHeader.getShort(28) & 0xffff;
+        return offset + LOCAL_FILE_HEADER_LENGTH + fileNameLength + extraFieldLength;
+    }
+
+    private static long crc(FileChannel channel, long size) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(CRC_BUFFER_BYTES);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            crc.update(buffer.array(), 0, read);
+            position += read;
+        }
+        return crc.getValue();
+    }
+
+    private static File prepareTarget(File destination, FileHeader fileHeader) throws IOException {
+        File target = getTarget(destination, fileHeader);
+        File parent = target.getParentFile();
+        if (parent != null && !parent.exists()) {
+            // noinspection ResultOfMethodCallIgnored
+            parent.mkdirs();
+        }
+        return target;
+    }
+
+    private static void extractStored(File archive, FileHeader fileHeader, File destination,
+                                      AtomicLong bytesWritten) throws Exception {
+        File target = prepareTarget(destination, fileHeader);
+        long size = fileHeader.getUncompressedSize();
+
+        try (RandomAccessFile in = new RandomAccessFile(archive, "r");
+             RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            FileChannel channel = in.getChannel();
+            long dataOffset = getDataOffset(channel, fileHeader);
+
+            raf.setLength(0);
+            FileTools.preallocate(target, raf, 0, size);
+
+            FileChannel out = raf.getChannel();
+            long position = 0;
+            while (position < size) {
+                long transferred = channel.transferTo(dataOffset + position,
+                        Math.min(TRANSFER_CHUNK_BYTES, size - position), out);
+                if (transferred <= 0) {
+                    throw new ZipException("Unexpected end of archive: " + fileHeader.getFileName());
+                }
+                position += transferred;
+                bytesWritten.addAndGet(transferred);
+            }
+
+            if (crc(out, size) != fileHeader.getCrc()) {
+                throw new ZipException("CRC check failed: " + fileHeader.getFileName());
+            }
+        } catch (Exception e) {
+            // noinspection ResultOfMethodCallIgnored
+            target.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Every worker uses its own ZipFile instance, zip4j is not thread-safe.
+     * Reading the entry to its end makes zip4j verify the CRC or, for AES, the MAC.
+     */
+    private static void extractCompressed(File archive, char[] password, FileHeader fileHeader, File destination,
+                                          AtomicLong bytesWritten) throws Exception {
+        File target = prepareTarget(destination, fileHeader);
+
+        try (ZipFile zipFile = new ZipFile(archive, password);
+             InputStream in = zipFile.getInputStream(zipFile.getFileHeader(fileHeader.getFileName()));
+             RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(0);
+            FileTools.preallocate(target, raf, 0, fileHeader.getUncompressedSize());
+
+            byte[] buffer = new byte[STREAM_BUFFER_BYTES];
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                raf.write(buffer, 0, len);
+                bytesWritten.addAndGet(len);
+            }
+            raf.setLength(raf.getFilePointer());
+        } catch (Exception e) {
+            // noinspection ResultOfMethodCallIgnored
+            target.delete();
+            throw e;
+        }
+    }
+
+    private static int getWorkerCount(int entries) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(Math.min(MAX_WORKERS, cores), entries));
+    }
+
+    @Override
+    public void extract(File archive, File destination, AtomicLong size, AtomicLong bytesWritten) throws Exception {
+
+        // The central directory tells us how much space the extracted files will need
+        long totalSize = 0;
+        List<FileHeader> files = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(archive, password)) {
+            for (FileHeader fileHeader : zipFile.getFileHeaders()) {
+                if (fileHeader.isDirectory()) {
+                    // noinspection ResultOfMethodCallIgnored
+                    getTarget(destination, fileHeader).mkdirs();
+                } else {
+                    files.add(fileHeader);
+                    totalSize += fileHeader.getUncompressedSize();
+                }
+            }
+        }
+        FileTools.checkFreeSpace(destination, totalSize);
+        size.set(totalSize);
+
+        // Largest entries first, so that a big apk does not end up waiting for a free worker
+        Collections.sort(files, (a, b) -> Long.compare(b.getUncompressedSize(), a.getUncompressedSize()));
+
+        ExecutorService executor = Executors.newFixedThreadPool(getWorkerCount(files.size()));
+        try {
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (FileHeader fileHeader : files) {
+                tasks.add(executor.submit(() -> {
+                    if (isStored(fileHeader)) {
+                        extractStored(archive, fileHeader, destination, bytesWritten);
+                    } else {
+                        extractCompressed(archive, password, fileHeader, destination, bytesWritten);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -43,4 +43,8 @@ public class AppInfo {
     public String getPackageName() {
         return packageName;
     }
+
+    public Integer getAppVersionCode() {
+        return appVersionCode;
+    }
 }
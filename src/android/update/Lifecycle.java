@@ -0,0 +1,189 @@
+package de.kolbasa.apkupdater.update;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Observable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.kolbasa.apkupdater.tools.StackExtractor;
+
+/**
+ * Single stream of typed events for all phases of an update.
+ * <p>
+ * Every phase is a span with its own id. A span emits "start", any number of "progress" events
+ * and then "end" or "error". The phases of one download share the parent span, which is closed
+ * by a "done" or "error" event. Times are milliseconds of {@link SystemClock#elapsedRealtime()}.
+ */
+public class Lifecycle extends Observable {
+
+    public static final String CONNECT = "connect";
+    public static final String DOWNLOAD = "download";
+    public static final String IMPORT = "import";
+    public static final String EXTRACT = "extract";
+    public static final String VERIFY = "verify";
+    public static final String STAGE = "stage";
+    public static final String INSTALL = "install";
+    public static final String CLEANUP = "cleanup";
+    public static final String DONE = "done";
+    public static final String ERROR = "error";
+    public static final String INTERRUPTED = "interrupted";
+
+    private static final String START = "start";
+    private static final String PROGRESS = "progress";
+    private static final String END = "end";
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    public class Span {
+
+        private final long id;
+        private final Span parent;
+        private final String type;
+        private final long startTime;
+        private boolean closed;
+
+        private Span(String type, Span parent) {
+            this.id = ids.incrementAndGet();
+            this.parent = parent;
+            this.type = type;
+            this.startTime = SystemClock.elapsedRealtime();
+        }
+
+        private JSONObject event(String type, String state) throws JSONException {
+            JSONObject event = new JSONObject();
+            event.put("type", type);
+            if (state != null) {
+                event.put("state", state);
+            }
+            event.put("span", id);
+            if (parent != null) {
+                event.put("parent", parent.id);
+            }
+            event.put("time", SystemClock.elapsedRealtime());
+            return event;
+        }
+
+        private JSONObject closingEvent(String type, String state) throws JSONException {
+            closed = true;
+            JSONObject event = event(type, state);
+            event.put("startTime", startTime);
+            event.put("duration", event.getLong("time") - startTime);
+            return event;
+        }
+
+        public Span begin(String type) {
+            return Lifecycle.this.begin(type, this);
+        }
+
+        public void progress(JSONObject progress) {
+            if (closed) {
+                return;
+            }
+            try {
+                JSONObject event = event(type, PROGRESS);
+                event.put("progress", progress);
+                broadcast(event);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void end() {
+            if (closed) {
+                return;
+            }
+            try {
+                broadcast(closingEvent(type, END));
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        public void fail(Exception exception) {
+            if (closed) {
+                return;
+            }
+            try {
+                JSONObject event = closingEvent(type, ERROR);
+                event.put("error", StackExtractor.format(exception));
+                broadcast(event);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Closes a parent span with a "done" event.
+         */
+        public void done(Update update) {
+            if (closed) {
+                return;
+            }
+            try {
+                JSONObject event = closingEvent(DONE, null);
+                if (update != null) {
+                    event.put("update", update.toJSON());
+                }
+                broadcast(event);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Closes a parent span with an "error" event.
+         */
+        public void error(Exception exception) {
+            if (closed) {
+                return;
+            }
+            try {
+                JSONObject event = closingEvent(ERROR, null);
+                event.put("error", StackExtractor.format(exception));
+                broadcast(event);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+    private void broadcast(JSONObject event) {
+        setChanged();
+        notifyObservers(event);
+    }
+
+    /**
+     * Parent span without events of its own, closed with {@link Span#done} or {@link Span#error}.
+     */
+    public Span create() {
+        return new Span(null, null);
+    }
+
+    /**
+     * A single event without a phase: a download was interrupted and can be resumed.
+     */
+    public void interrupted(JSONObject download) {
+        try {
+            JSONObject event = new Span(INTERRUPTED, null).event(INTERRUPTED, null);
+            event.put("download", download);
+            broadcast(event);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public Span begin(String type, Span parent) {
+        Span span = new Span(type, parent);
+        try {
+            broadcast(span.event(type, START));
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return span;
+    }
+
+}
@@ -0,0 +1,141 @@
+package de.kolbasa.apkupdater.update;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+
+import de.kolbasa.apkupdater.downloader.PayloadDecryptor;
+import de.kolbasa.apkupdater.exceptions.DownloadFailedException;
+import de.kolbasa.apkupdater.exceptions.DownloadInProgressException;
+import de.kolbasa.apkupdater.exceptions.DownloadPausedException;
+import de.kolbasa.apkupdater.exceptions.InsufficientStorageException;
+import de.kolbasa.apkupdater.exceptions.UpdateDeferredException;
+import de.kolbasa.apkupdater.tools.Metrics;
+
+/**
+ * Downloads an update in the background, as soon as the device meets the requested constraints.
+ * The job runs without the WebView, the verified update is then available via getDownloadedUpdate().
+ */
+public class PrefetchService extends JobService {
+
+    private static final int JOB_ID = 0x61706b75;
+    private static final long BACKOFF_MILLIS = 60000;
+
+    private static final String URL = "url";
+    private static final String BASIC_AUTH = "basicAuth";
+    private static final String ZIP_PASSWORD = "zipPassword";
+    private static final String PAYLOAD_KEY = "payloadKey";
+    private static final String ROLLOUT_URL = "rolloutUrl";
+    // PersistableBundle.putBoolean() needs API 22
+    private static final String UNMETERED = "unmetered";
+    private static final String CHARGING = "charging";
+    private static final String IDLE = "idle";
+
+    private volatile Thread worker;
+
+    private static JobScheduler getScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    /**
+     * Replaces a previously scheduled prefetch. The job is not persisted, it does not survive a reboot
+     * and the credentials are only kept in memory.
+     */
+    public static boolean schedule(Context context, String url, String basicAuth, String zipPassword,
+                                   String payloadKey, String rolloutUrl, boolean unmetered, boolean charging,
+                                   boolean idle) {
+        if (payloadKey != null) {
+            PayloadDecryptor.checkKey(payloadKey);
+        }
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(URL, url);
+        extras.putString(BASIC_AUTH, basicAuth);
+        extras.putString(ZIP_PASSWORD, zipPassword);
+        extras.putString(PAYLOAD_KEY, payloadKey);
+        extras.putString(ROLLOUT_URL, rolloutUrl);
+        extras.putInt(UNMETERED, unmetered ? 1 : 0);
+        extras.putInt(CHARGING, charging ? 1 : 0);
+        extras.putInt(IDLE, idle ? 1 : 0);
+
+        return schedule(context, extras, 0);
+    }
+
+    private static boolean schedule(Context context, PersistableBundle extras, long minimumLatencyMillis) {
+        JobInfo.Builder builder = new JobInfo.Builder(JOB_ID, new ComponentName(context, PrefetchService.class))
+                .setRequiredNetworkType(extras.getInt(UNMETERED, 1) == 1
+                        ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(extras.getInt(CHARGING, 0) == 1)
+                .setExtras(extras);
+        if (extras.getInt(IDLE, 0) == 1) {
+            // build() rejects a backoff policy for idle jobs, they are retried in the next idle window
+            builder.setRequiresDeviceIdle(true);
+        } else {
+            builder.setBackoffCriteria(BACKOFF_MILLIS, JobInfo.BACKOFF_POLICY_EXPONENTIAL);
+        }
+        if (minimumLatencyMillis > 0) {
+            builder.setMinimumLatency(minimumLatencyMillis);
+        }
+        return getScheduler(context).schedule(builder.build()) == JobScheduler.RESULT_SUCCESS;
+    }
+
+    public static void cancel(Context context) {
+        getScheduler(context).cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        UpdateManager updateManager = UpdateManager.getInstance(this);
+        PersistableBundle extras = params.getExtras();
+        worker = new Thread(() -> {
+            boolean reschedule = false;
+            long deferredUntil = -1;
+            try {
+                Metrics.init(getApplicationContext());
+                updateManager.download(extras.getString(URL), extras.getString(BASIC_AUTH),
+                        extras.getString(ZIP_PASSWORD), extras.getString(PAYLOAD_KEY), extras.getString(ROLLOUT_URL));
+            } catch (DownloadFailedException | InsufficientStorageException | DownloadPausedException e) {
+                // The partial download is kept, the next run continues it
+                reschedule = true;
+            } catch (DownloadInProgressException e) {
+                // The app is downloading in the foreground right now
+                reschedule = true;
+            } catch (UpdateDeferredException e) {
+                // Not in the rollout yet (no scheduled time) or not before the given time
+                reschedule = e.getScheduledTime() < 0;
+                deferredUntil = e.getScheduledTime();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (worker != null) {
+                worker = null;
+                if (deferredUntil >= 0) {
+                    jobFinished(params, false);
+                    schedule(getApplicationContext(), extras, deferredUntil - System.currentTimeMillis());
+                } else {
+                    jobFinished(params, reschedule);
+                }
+            }
+        });
+        worker.start();
+        return true;
+    }
+
+    /**
+     * The constraints are no longer met, e.g. the device left the wifi.
+     */
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (worker == null) {
+            return false;
+        }
+        worker = null;
+        UpdateManager.getInstance(this).stop();
+        return true;
+    }
+
+}
@@ -0,0 +1,185 @@
+package de.kolbasa.apkupdater.update;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.provider.Settings;
+import android.util.Base64;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import de.kolbasa.apkupdater.exceptions.DownloadFailedException;
+import de.kolbasa.apkupdater.exceptions.UpdateDeferredException;
+import de.kolbasa.apkupdater.tools.FileTools;
+
+/**
+ * Spreads the downloads of a new release over time, so that not all devices hit the server at once.
+ * <p>
+ * The server publishes a rollout: { "id": "1.0.1", "percentage": 25, "start": 1639132800000,
+ * "window": 86400000, "jitter": 600000 }. Every device has a fixed bucket in [0, 1), derived from
+ * its ANDROID_ID, the package name and the rollout id. Devices with a bucket below the percentage
+ * take part, their slot is spread linearly over the window, plus a random jitter that is drawn once
+ * per rollout. "Come back later" hints of the server (Retry-After) are stored and respected as well.
+ */
+public class RolloutScheduler {
+
+    public static final String NOT_IN_ROLLOUT = "notInRollout";
+    public static final String ROLLOUT_SLOT = "rolloutSlot";
+    public static final String SERVER_HINT = "serverHint";
+
+    private static final String PREFERENCES = "de.kolbasa.apkupdater.rollout";
+    private static final String NOT_BEFORE = "notBefore";
+    private static final String JITTER_ID = "jitterId";
+    private static final String JITTER = "jitter";
+
+    private static final int TIMEOUT_MILLIS = 15000;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final Context context;
+    private final Random random = new Random();
+
+    public RolloutScheduler(Context context) {
+        this.context = context;
+    }
+
+    private SharedPreferences getPreferences() {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Stable position of this device in a rollout, between 0 (inclusive) and 1 (exclusive).
+     */
+    public double getBucket(String rolloutId) {
+        String androidId = Settings.Secure.getString(context.getContentResolver(), Settings.Secure.ANDROID_ID);
+        return getBucket(androidId, context.getPackageName(), rolloutId);
+    }
+
+    static double getBucket(String androidId, String packageName, String rolloutId) {
+        MessageDigest digest = FileTools.sha256();
+        digest.update((androidId + ":" + packageName + ":" + rolloutId).getBytes());
+        long value = ByteBuffer.wrap(digest.digest()).getInt() & 0xffffffffL;
+        return value / (double) (1L << 32);
+    }
+
+    static boolean isInRollout(double bucket, double percentage) {
+        return bucket * 100 < percentage;
+    }
+
+    /**
+     * The position within the devices that take part, so raising the percentage keeps the devices
+     * that already take part and only moves their slots forward.
+     */
+    static long getSlot(double bucket, double percentage, long start, long window, long jitter) {
+        double position = bucket * 100 / percentage;
+        return start + (long) (position * window) + jitter;
+    }
+
+    public void deferUntil(long time) {
+        getPreferences().edit().putLong(NOT_BEFORE, time).commit();
+    }
+
+    /**
+     * Fails if the server asked to come back later and that time has not been reached yet.
+     */
+    public void checkServerHint() throws UpdateDeferredException {
+        long notBefore = getPreferences().getLong(NOT_BEFORE, 0);
+        if (notBefore > System.currentTimeMillis()) {
+            throw new UpdateDeferredException(SERVER_HINT, notBefore, -1, null);
+        }
+    }
+
+    private synchronized long getJitter(String rolloutId, long maxJitter) {
+        SharedPreferences preferences = getPreferences();
+        if (rolloutId.equals(preferences.getString(JITTER_ID, null))) {
+            return Math.min(preferences.getLong(JITTER, 0), maxJitter);
+        }
+        long jitter = (long) (random.nextDouble() * maxJitter);
+        preferences.edit().putString(JITTER_ID, rolloutId).putLong(JITTER, jitter).commit();
+        return jitter;
+    }
+
+    private JSONObject fetch(String rolloutUrl, String basicAuth) throws DownloadFailedException,
+            UpdateDeferredException {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(rolloutUrl).openConnection();
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            if (basicAuth != null) {
+                String auth = new String(Base64.encode(basicAuth.getBytes(), Base64.NO_WRAP));
+                connection.setRequestProperty("Authorization", "Basic " + auth);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                String retryAfter = connection.getHeaderField("Retry-After");
+                if (retryAfter != null) {
+                    long time;
+                    try {
+                        time = System.currentTimeMillis() + Long.parseLong(retryAfter.trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        time = connection.getHeaderFieldDate("Retry-After", System.currentTimeMillis());
+                    }
+                    deferUntil(time);
+                    throw new UpdateDeferredException(SERVER_HINT, time, -1, null);
+                }
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new DownloadFailedException("{ response: { message: '" + connection.getResponseMessage()
+                        + "', code: " + responseCode + " }, url: '" + rolloutUrl + "' }", null);
+            }
+
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                }
+                return new JSONObject(new String(out.toByteArray(), "UTF-8"));
+            }
+        } catch (UpdateDeferredException | DownloadFailedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new DownloadFailedException(e);
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Fails if this device is not part of the rollout or its slot has not been reached yet.
+     */
+    public void checkSlot(String rolloutUrl, String basicAuth) throws DownloadFailedException,
+            UpdateDeferredException {
+        checkServerHint();
+
+        JSONObject rollout = fetch(rolloutUrl, basicAuth);
+        String id = rollout.optString("id", rolloutUrl);
+        double percentage = rollout.optDouble("percentage", 100);
+        long start = rollout.optLong("start", 0);
+        long window = rollout.optLong("window", 0);
+        long maxJitter = rollout.optLong("jitter", 0);
+
+        double bucket = getBucket(id);
+        if (!isInRollout(bucket, percentage)) {
+            throw new UpdateDeferredException(NOT_IN_ROLLOUT, -1, bucket, null);
+        }
+
+        long slot = getSlot(bucket, percentage, start, window, getJitter(id, maxJitter));
+        if (slot > System.currentTimeMillis()) {
+            throw new UpdateDeferredException(ROLLOUT_SLOT, slot, bucket, null);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+package de.kolbasa.apkupdater.update;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import de.kolbasa.apkupdater.tools.FileTools;
+
+/**
+ * Every download is staged in its own generation directory. A pointer file names the
+ * generation that holds the last verified update; it is only swapped once a new
+ * generation has been verified, so the previous update stays available in the meantime.
+ */
+public class StagingArea {
+
+    private static final String POINTER = "current";
+    private static final String GENERATION_PREFIX = "gen-";
+    private static final String TRASH_PREFIX = "trash-";
+
+    private static final ExecutorService collector = Executors.newSingleThreadExecutor();
+
+    private final File root;
+
+    public StagingArea(File root) {
+        this.root = root;
+
+        if (!root.exists()) {
+            // noinspection ResultOfMethodCallIgnored
+            root.mkdirs();
+        }
+    }
+
+    private static long getGenerationNumber(File generation) {
+        try {
+            return Long.parseLong(generation.getName().substring(GENERATION_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private List<File> getGenerations() {
+        List<File> generations = new ArrayList<>();
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().startsWith(GENERATION_PREFIX)
+                        && getGenerationNumber(file) >= 0) {
+                    generations.add(file);
+                }
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * @return The generation of the last verified update or null.
+     */
+    public synchronized File getCurrent() {
+        File pointer = new File(root, POINTER);
+        if (!pointer.exists()) {
+            return null;
+        }
+        try {
+            File generation = new File(root, FileTools.read(pointer).trim());
+            return generation.isDirectory() ? generation : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The newest generation that has not been committed yet, e.g. an interrupted download.
+     */
+    public synchronized File getPending() {
+        File current = getCurrent();
+        long currentNumber = current == null ? -1 : getGenerationNumber(current);
+
+        File pending = null;
+        for (File generation : getGenerations()) {
+            long number = getGenerationNumber(generation);
+            if (number > currentNumber && (pending == null || number > getGenerationNumber(pending))) {
+                pending = generation;
+            }
+        }
+        return pending;
+    }
+
+    public synchronized File createGeneration() throws IOException {
+        long number = System.currentTimeMillis();
+        for (File generation : getGenerations()) {
+            number = Math.max(number, getGenerationNumber(generation) + 1);
+        }
+        File generation = new File(root, GENERATION_PREFIX + number);
+        if (!generation.mkdir()) {
+            throw new IOException("Could not create " + generation.getCanonicalPath());
+        }
+        return generation;
+    }
+
+    /**
+     * Atomically makes the given generation the current one.
+     */
+    public synchronized void commit(File generation) throws IOException {
+        FileTools.writeAtomically(new File(root, POINTER), generation.getName());
+    }
+
+    private void moveToTrash(File file) {
+        File trash = new File(root, TRASH_PREFIX + file.getName());
+        if (file.renameTo(trash)) {
+            collector.execute(() -> FileTools.delete(trash));
+        } else {
+            FileTools.delete(file);
+        }
+    }
+
+    /**
+     * Removes a generation that will never be committed.
+     */
+    public synchronized void discard(File generation) {
+        moveToTrash(generation);
+    }
+
+    private void removeAllExcept(File current, File pending) {
+        File[] files = root.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(POINTER) || file.equals(current) || file.equals(pending)) {
+                continue;
+            }
+            if (name.startsWith(TRASH_PREFIX)) {
+                collector.execute(() -> FileTools.delete(file));
+            } else {
+                moveToTrash(file);
+            }
+        }
+    }
+
+    /**
+     * Removes everything except the current and the pending generation in the background.
+     */
+    public synchronized void collectGarbage() {
+        removeAllExcept(getCurrent(), getPending());
+    }
+
+    /**
+     * Removes all generations, including the current one.
+     */
+    public synchronized void clear() {
+        // noinspection ResultOfMethodCallIgnored
+        new File(root, POINTER).delete();
+        removeAllExcept(null, null);
+    }
+
+}
@@ -20,6 +20,10 @@ public class Update {
         return installFile;
     }
 
+    public AppInfo getAppInfo() {
+        return appInfo;
+    }
+
     public JSONObject toJSON() throws JSONException {
         JSONObject result = new JSONObject();
 
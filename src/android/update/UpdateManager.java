@@ -2,42 +2,136 @@ package de.kolbasa.apkupdater.update;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Observer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import de.kolbasa.apkupdater.downloader.DownloadJournal;
 import de.kolbasa.apkupdater.downloader.FileDownloader;
+import de.kolbasa.apkupdater.downloader.FileImporter;
+import de.kolbasa.apkupdater.downloader.PayloadDecryptor;
+import de.kolbasa.apkupdater.downloader.PeerDiscovery;
+import de.kolbasa.apkupdater.downloader.PeerDownloader;
+import de.kolbasa.apkupdater.downloader.PeerServer;
+import de.kolbasa.apkupdater.downloader.Progress;
+import de.kolbasa.apkupdater.exceptions.ChecksumMismatchException;
 import de.kolbasa.apkupdater.exceptions.DownloadFailedException;
+import de.kolbasa.apkupdater.exceptions.DownloadInProgressException;
+import de.kolbasa.apkupdater.exceptions.DownloadNotRunningException;
+import de.kolbasa.apkupdater.exceptions.DownloadPausedException;
+import de.kolbasa.apkupdater.exceptions.ImportNotPausableException;
+import de.kolbasa.apkupdater.exceptions.InsufficientStorageException;
 import de.kolbasa.apkupdater.exceptions.InvalidPackageException;
+import de.kolbasa.apkupdater.exceptions.NoInterruptedDownloadException;
 import de.kolbasa.apkupdater.exceptions.UnzipException;
+import de.kolbasa.apkupdater.exceptions.UpdateDeferredException;
 import de.kolbasa.apkupdater.exceptions.UpdateNotFoundException;
 import de.kolbasa.apkupdater.tools.AppData;
 import de.kolbasa.apkupdater.tools.ArchiveManager;
 import de.kolbasa.apkupdater.tools.FileTools;
+import de.kolbasa.apkupdater.tools.Metrics;
 
 public class UpdateManager {
 
     private static final String APK = "apk";
-    private static final String ZIP = "zip";
+    private static final String UPDATE_DIR = "update";
+    private static final String SEED_FILE = "peer.json";
+    private static final long PEER_DISCOVERY_MILLIS = 3000;
+
+    private static UpdateManager instance;
 
     private final File downloadDir;
+    private final StagingArea stagingArea;
+    private final Lifecycle lifecycle = new Lifecycle();
+    private final RolloutScheduler rolloutScheduler;
+
+    // Only the update of the app itself has a timeline, not the ones of other packages
+    private boolean recordTimeline;
     private Observer downloadObserver;
     private Observer unzipObserver;
 
     private FileDownloader fileDownloader;
+    private FileImporter fileImporter;
+    private PeerDownloader peerDownloader;
+    private PeerServer peerServer;
+    private PeerDiscovery peerDiscovery;
     private ArchiveManager archiveManager;
     private final Context context;
 
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final List<Runnable> stoppedListeners = new ArrayList<>();
+    private volatile boolean paused;
+    private volatile PausedDownload pausedDownload;
+
+    /**
+     * The options of a paused download, so that {@link #resumePaused} does not need them again.
+     */
+    private static class PausedDownload {
+
+        private final String path;
+        private final String basicAuth;
+        private final String zipPassword;
+        private final String payloadKey;
+        private final String digest;
+        private final List<String> peers;
+
+        private PausedDownload(String path, String basicAuth, String zipPassword, String payloadKey,
+                               String digest, List<String> peers) {
+            this.path = path;
+            this.basicAuth = basicAuth;
+            this.zipPassword = zipPassword;
+            this.payloadKey = payloadKey;
+            this.digest = digest;
+            this.peers = peers;
+        }
+
+    }
+
     public UpdateManager(File downloadDirectory, Context context) {
         this.downloadDir = downloadDirectory;
+        this.stagingArea = new StagingArea(downloadDirectory);
         this.context = context;
+        this.rolloutScheduler = new RolloutScheduler(context);
+        this.stagingArea.collectGarbage();
+    }
+
+    /**
+     * The update of the app itself. The plugin and the background prefetch share this instance,
+     * so that they never download at the same time.
+     */
+    public static synchronized UpdateManager getInstance(Context context) {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            instance = new UpdateManager(getDownloadDirectory(appContext), appContext);
+            instance.recordTimeline = true;
+        }
+        return instance;
+    }
 
-        if (!downloadDir.exists()) {
-            // noinspection ResultOfMethodCallIgnored
-            downloadDir.mkdir();
+    /**
+     * Below Android 7 the installer can only read APKs from the external storage. Downloading and
+     * extracting there saves copying the APK before each install. An existing internal download
+     * directory is kept, so that an update staged by a previous version is not lost.
+     */
+    private static File getDownloadDirectory(Context context) {
+        File internal = new File(context.getFilesDir(), UPDATE_DIR);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N && !internal.exists()) {
+            File external = context.getExternalCacheDir();
+            if (external != null) {
+                return new File(external, UPDATE_DIR);
+            }
         }
+        return internal;
     }
 
     public void addDownloadObserver(Observer observer) {
@@ -48,68 +142,385 @@ public class UpdateManager {
         this.unzipObserver = observer;
     }
 
-    private void stop() {
+    /**
+     * Unlike the progress observers, lifecycle observers stay registered until they are removed.
+     */
+    public void addLifecycleObserver(Observer observer) {
+        lifecycle.addObserver(observer);
+    }
+
+    public void removeLifecycleObserver(Observer observer) {
+        lifecycle.deleteObserver(observer);
+    }
+
+    public Lifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    private static void pushProgress(Lifecycle.Span span, Object progress) {
+        try {
+            span.progress(((Progress) progress).toJSON());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops a running download. The partial download is kept and can be resumed.
+     */
+    public void stop() {
+        PeerDownloader peerDownloader = this.peerDownloader;
+        if (peerDownloader != null) {
+            peerDownloader.interrupt();
+        }
         if (fileDownloader != null) {
             fileDownloader.interrupt();
         }
+        FileImporter fileImporter = this.fileImporter;
+        if (fileImporter != null) {
+            fileImporter.interrupt();
+        }
+    }
+
+    /**
+     * Stops the transfer of a running download. Everything written so far is synced and committed to the journal,
+     * {@link #resumePaused} continues from there.
+     *
+     * @param stopped Called once the download has ended
+     */
+    public void pause(Runnable stopped) throws DownloadNotRunningException, ImportNotPausableException {
+        if (fileImporter != null) {
+            throw new ImportNotPausableException();
+        }
+        PeerDownloader peerDownloader = this.peerDownloader;
+        FileDownloader fileDownloader = this.fileDownloader;
+        if (fileDownloader == null || archiveManager != null) {
+            // Extraction and verification are not interrupted
+            throw new DownloadNotRunningException();
+        }
+        synchronized (stoppedListeners) {
+            if (!running.get()) {
+                throw new DownloadNotRunningException();
+            }
+            stoppedListeners.add(stopped);
+        }
+        paused = true;
+        if (peerDownloader != null) {
+            peerDownloader.interrupt();
+        }
+        fileDownloader.pause();
     }
 
-    public void reset() throws IOException {
+    /**
+     * Ends the claim of {@link #claim()} and notifies everyone waiting for the download to stop.
+     */
+    private void release() {
+        List<Runnable> listeners;
+        synchronized (stoppedListeners) {
+            running.set(false);
+            listeners = new ArrayList<>(stoppedListeners);
+            stoppedListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Continues a paused download with the options of the original call, given options replace them.
+     * After an app restart only the digest is known from the journal, the other options have to be passed again.
+     */
+    public Update resumePaused(String basicAuth, String zipPassword, String payloadKey) throws IOException,
+            UnzipException, DownloadFailedException, UpdateNotFoundException, InvalidPackageException,
+            PackageManager.NameNotFoundException, NoInterruptedDownloadException, InsufficientStorageException,
+            UpdateDeferredException, ChecksumMismatchException, DownloadPausedException, DownloadInProgressException {
+        PausedDownload paused = pausedDownload;
+        if (paused == null) {
+            return resume(basicAuth, zipPassword, payloadKey);
+        }
+        getInterruptedDownload();
+        return download(paused.path, basicAuth != null ? basicAuth : paused.basicAuth,
+                zipPassword != null ? zipPassword : paused.zipPassword,
+                payloadKey != null ? payloadKey : paused.payloadKey, null, paused.digest, paused.peers);
+    }
+
+    /**
+     * Serves the verified update to other devices on the local network and looks for peers
+     * before downloading from the origin. Only updates downloaded with a digest are shared.
+     *
+     * @param port 0 for any free port
+     */
+    public synchronized void setPeerMode(boolean enabled, int port) throws IOException {
+        if (enabled && peerServer == null) {
+            peerServer = new PeerServer(port);
+            peerDiscovery = new PeerDiscovery(context);
+            seed(stagingArea.getCurrent());
+        } else if (!enabled && peerServer != null) {
+            peerDiscovery.unregister();
+            peerServer.close();
+            peerServer = null;
+            peerDiscovery = null;
+        }
+    }
+
+    public synchronized boolean isPeerMode() {
+        return peerServer != null;
+    }
+
+    private synchronized void seed(File generation) {
+        if (peerServer == null) {
+            return;
+        }
+        try {
+            if (generation != null && new File(generation, SEED_FILE).exists()) {
+                JSONObject seed = new JSONObject(FileTools.read(new File(generation, SEED_FILE)));
+                File file = new File(generation, seed.getString("file"));
+                String digest = seed.getString("digest");
+                if (file.exists()) {
+                    peerServer.serve(file, digest);
+                    peerDiscovery.register(peerServer.getPort(), digest, file.length());
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        peerServer.serve(null, null);
+        peerDiscovery.unregister();
+    }
+
+    private void writeSeed(File generation, File file, String digest) {
+        try {
+            JSONObject seed = new JSONObject();
+            seed.put("file", file.getName());
+            seed.put("digest", digest.toLowerCase());
+            FileTools.writeAtomically(new File(generation, SEED_FILE), seed.toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void reset() {
+        pausedDownload = null;
+        Lifecycle.Span cleanup = lifecycle.begin(Lifecycle.CLEANUP, null);
         if (isDownloading()) {
             stop();
             try {
                 Thread.sleep(100);
-                FileTools.clearDirectory(downloadDir);
             } catch (InterruptedException e) {
                 e.printStackTrace();
             }
-        } else {
-            FileTools.clearDirectory(downloadDir);
+        }
+        stagingArea.clear();
+        seed(null);
+        cleanup.end();
+    }
+
+    private List<String> findPeers(String digest, List<String> peers) {
+        List<String> found = new ArrayList<>();
+        if (peers != null) {
+            found.addAll(peers);
+        }
+        PeerDiscovery discovery;
+        synchronized (this) {
+            discovery = peerDiscovery;
+        }
+        if (discovery != null) {
+            try {
+                found.addAll(discovery.discover(digest, PEER_DISCOVERY_MILLIS));
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return The number of bytes that were fetched from peers
+     */
+    private long downloadFromPeers(String path, String digest, List<String> peers, File downloadDir,
+                                   Observer spans) throws DownloadFailedException, InsufficientStorageException {
+        List<String> sources = findPeers(digest, peers);
+        if (sources.isEmpty()) {
+            return 0;
+        }
+        peerDownloader = new PeerDownloader();
+        try {
+            if (downloadObserver != null) {
+                peerDownloader.addObserver(downloadObserver);
+            }
+            peerDownloader.addObserver(spans);
+            long bytes = peerDownloader.download(path, downloadDir, digest, sources);
+            if (peerDownloader.isInterrupted()) {
+                throw new DownloadFailedException(new IOException("Download was interrupted"));
+            }
+            return bytes;
+        } catch (IOException e) {
+            // The origin takes over
+            e.printStackTrace();
+            return 0;
+        } finally {
+            peerDownloader = null;
         }
     }
 
-    private File downloadFile(String path, String basicAuth) throws DownloadFailedException {
+    /**
+     * @param digest Optional SHA-256 of the file, as published by the origin. Required to fetch from peers.
+     * @param peers  Optional "host:port" of devices that serve the file, in addition to the discovered ones.
+     */
+    private File downloadFile(String path, String basicAuth, String payloadKey, String digest, List<String> peers,
+                              File downloadDir, Lifecycle.Span parent) throws DownloadFailedException,
+            InsufficientStorageException, UpdateDeferredException, ChecksumMismatchException, IOException,
+            DownloadPausedException {
+        // The first progress event means that the server or a peer has responded
+        Lifecycle.Span connect = parent.begin(Lifecycle.CONNECT);
+        AtomicReference<Lifecycle.Span> download = new AtomicReference<>();
+        Observer spans = (o, arg) -> {
+            if (download.get() == null) {
+                connect.end();
+                download.set(parent.begin(Lifecycle.DOWNLOAD));
+            }
+            pushProgress(download.get(), arg);
+        };
         try {
             fileDownloader = new FileDownloader();
+            fileDownloader.setPayloadKey(payloadKey);
+            fileDownloader.setDigest(digest);
             if (downloadObserver != null) {
                 fileDownloader.addObserver(downloadObserver);
             }
-            return fileDownloader.download(path, downloadDir, basicAuth);
+            fileDownloader.addObserver(spans);
+
+            // Peers serve the file as published by the origin, an encrypted payload is decrypted on the fly
+            long peerBytes = 0;
+            if (digest != null && payloadKey == null) {
+                peerBytes = downloadFromPeers(path, digest, peers, downloadDir, spans);
+            }
+            if (paused) {
+                throw new DownloadPausedException();
+            }
+
+            // Completes the file from the origin, or only renames it if the peers had everything
+            boolean resumed = DownloadJournal.load(downloadDir).getCommittedLength() > peerBytes;
+            File file = fileDownloader.download(path, downloadDir, basicAuth);
+
+            if (digest != null && !FileTools.sha256(file).equalsIgnoreCase(digest)) {
+                // noinspection ResultOfMethodCallIgnored
+                file.delete();
+                if (peerBytes == 0 && !resumed) {
+                    throw new ChecksumMismatchException(file.getName());
+                }
+                // A peer or an earlier attempt left something else, nothing of it can be trusted
+                file = fileDownloader.download(path, downloadDir, basicAuth);
+                if (!FileTools.sha256(file).equalsIgnoreCase(digest)) {
+                    // noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                    throw new ChecksumMismatchException(file.getName());
+                }
+            }
+
+            connect.end();
+            if (download.get() != null) {
+                download.get().end();
+            }
+            return file;
+        } catch (ChecksumMismatchException | IOException e) {
+            connect.fail(e);
+            if (download.get() != null) {
+                download.get().fail(e);
+            }
+            throw e;
+        } catch (DownloadPausedException e) {
+            connect.fail(e);
+            if (download.get() != null) {
+                download.get().fail(e);
+            }
+            throw e;
+        } catch (DownloadFailedException | InsufficientStorageException e) {
+            connect.fail(e);
+            if (download.get() != null) {
+                download.get().fail(e);
+            }
+            if (paused) {
+                throw new DownloadPausedException();
+            }
+            long retryAfterMillis = fileDownloader.getRetryAfterMillis();
+            if (e instanceof DownloadFailedException && retryAfterMillis >= 0) {
+                // The server is overloaded, do not try again before the time it asked for
+                long time = System.currentTimeMillis() + retryAfterMillis;
+                rolloutScheduler.deferUntil(time);
+                throw new UpdateDeferredException(RolloutScheduler.SERVER_HINT, time, -1, e);
+            }
+            throw e;
         } finally {
             fileDownloader = null;
         }
     }
 
-    private void unzipUpdate(File file, String password) throws UnzipException {
-        if (!FileTools.isType(file, ZIP)) {
-            return;
+    /**
+     * @param keepArchive Keep the archive next to the extracted files, e.g. to serve it to peers
+     */
+    private void unzipUpdate(File file, String password, boolean keepArchive, Lifecycle.Span parent)
+            throws UnzipException, InsufficientStorageException {
+        try {
+            if (!ArchiveManager.isArchive(file)) {
+                return;
+            }
+        } catch (IOException e) {
+            throw new UnzipException(e);
         }
+        Lifecycle.Span extract = parent.begin(Lifecycle.EXTRACT);
         try {
             archiveManager = new ArchiveManager();
             if (unzipObserver != null) {
                 archiveManager.addObserver(unzipObserver);
             }
+            archiveManager.addObserver((o, arg) -> pushProgress(extract, arg));
             archiveManager.extract(file, password);
-            // noinspection ResultOfMethodCallIgnored
-            file.delete();
+            if (!keepArchive) {
+                // noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            extract.end();
+        } catch (InsufficientStorageException e) {
+            extract.fail(e);
+            throw e;
         } catch (Exception e) {
+            extract.fail(e);
             throw new UnzipException(e);
         } finally {
             archiveManager = null;
         }
     }
 
-    private Update getApkInfo() throws UpdateNotFoundException, IOException,
+    private Update verify(File generation, Lifecycle.Span parent) throws UpdateNotFoundException, IOException,
             InvalidPackageException, PackageManager.NameNotFoundException {
+        Lifecycle.Span verify = parent.begin(Lifecycle.VERIFY);
+        try {
+            Update update = getApkInfo(generation);
+            verify.end();
+            return update;
+        } catch (Exception e) {
+            verify.fail(e);
+            throw e;
+        }
+    }
 
-        List<File> updateFiles = FileTools.findByFileType(downloadDir, APK);
+    private Update getApkInfo(File generation) throws UpdateNotFoundException, IOException,
+            InvalidPackageException, PackageManager.NameNotFoundException {
+
+        if (generation == null) {
+            throw new UpdateNotFoundException(downloadDir.getCanonicalPath());
+        }
+
+        List<File> updateFiles = FileTools.findByFileType(generation, APK);
 
         if (updateFiles.size() > 1) {
             throw new InvalidPackageException("Split apks are not supported");
         }
 
         if (updateFiles.isEmpty()) {
-            throw new UpdateNotFoundException(downloadDir.getCanonicalPath());
+            throw new UpdateNotFoundException(generation.getCanonicalPath());
         }
 
         File update = updateFiles.get(0);
@@ -120,35 +531,268 @@ public class UpdateManager {
 
     public Update getUpdate() throws IOException, UpdateNotFoundException,
             InvalidPackageException, PackageManager.NameNotFoundException {
-        return getApkInfo();
+        return getApkInfo(stagingArea.getCurrent());
     }
 
-    public Update download(String path, String basicAuth, String zipPassword) throws IOException,
-            UnzipException, DownloadFailedException, UpdateNotFoundException,
+    /**
+     * @return The journal of a download that was interrupted, e.g. because the process was killed.
+     */
+    public DownloadJournal getInterruptedDownload() throws NoInterruptedDownloadException {
+        File pending = stagingArea.getPending();
+        if (isDownloading() || pending == null) {
+            throw new NoInterruptedDownloadException();
+        }
+        DownloadJournal journal = DownloadJournal.load(pending);
+        if (!journal.exists() || !journal.getPartFile().exists()) {
+            throw new NoInterruptedDownloadException();
+        }
+        return journal;
+    }
+
+    /**
+     * Tells the lifecycle observers about an interrupted download, see {@link #getInterruptedDownload()}.
+     */
+    public void announceInterruptedDownload() {
+        try {
+            lifecycle.interrupted(getInterruptedDownload().toJSON());
+        } catch (NoInterruptedDownloadException e) {
+            // Nothing to resume
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void markTimeline(String phase) {
+        if (recordTimeline) {
+            UpdateTimeline.mark(context, phase);
+        }
+    }
+
+    /**
+     * Extracts, verifies and commits a downloaded or imported file. Shared by {@link #download} and
+     * {@link #importUpdate}.
+     *
+     * @param digest Verified SHA-256 of the file, the file is served to peers if set
+     */
+    private Update stage(File generation, File file, String zipPassword, String digest, Lifecycle.Span span)
+            throws UnzipException, InsufficientStorageException, UpdateNotFoundException, IOException,
             InvalidPackageException, PackageManager.NameNotFoundException {
+        markTimeline(UpdateTimeline.DOWNLOAD_END);
+        boolean shareable = digest != null;
+        unzipUpdate(file, zipPassword, shareable && isPeerMode(), span);
+        markTimeline(UpdateTimeline.EXTRACT_END);
+
+        // The previous update stays current until the new one has been verified
+        Update update = verify(generation, span);
+
+        Lifecycle.Span stage = span.begin(Lifecycle.STAGE);
+        if (shareable && file.exists()) {
+            writeSeed(generation, file, digest);
+        }
+        stagingArea.commit(generation);
+        stagingArea.collectGarbage();
+        seed(generation);
+        stage.end();
 
+        if (recordTimeline) {
+            UpdateTimeline.staged(context, update);
+        }
+        return update;
+    }
+
+    public Update resume(String basicAuth, String zipPassword, String payloadKey) throws IOException,
+            UnzipException, DownloadFailedException, UpdateNotFoundException,
+            InvalidPackageException, PackageManager.NameNotFoundException, NoInterruptedDownloadException,
+            InsufficientStorageException, UpdateDeferredException, ChecksumMismatchException, DownloadPausedException,
+            DownloadInProgressException {
+        DownloadJournal journal = getInterruptedDownload();
+        if (payloadKey == null && journal.getDecryptorState() != null) {
+            // Without the key, the encrypted payload would be downloaded again as it is
+            throw new IllegalArgumentException("The interrupted download is encrypted, payloadKey is required");
+        }
+        return download(journal.getUrl(), basicAuth, zipPassword, payloadKey, null);
+    }
+
+    public Update download(String path, String basicAuth, String zipPassword, String payloadKey, String rolloutUrl)
+            throws IOException, UnzipException, DownloadFailedException, UpdateNotFoundException,
+            InvalidPackageException, PackageManager.NameNotFoundException, InsufficientStorageException,
+            UpdateDeferredException, ChecksumMismatchException, DownloadPausedException, DownloadInProgressException {
+        return download(path, basicAuth, zipPassword, payloadKey, rolloutUrl, null, null);
+    }
+
+    /**
+     * @param rolloutUrl Optional, see {@link RolloutScheduler}. Not checked when an interrupted download is continued.
+     * @param digest     Optional SHA-256 of the downloaded file. Required to fetch the file from peers.
+     * @param peers      Optional "host:port" of devices that serve the file, see {@link #setPeerMode}.
+     */
+    public Update download(String path, String basicAuth, String zipPassword, String payloadKey, String rolloutUrl,
+                           String digest, List<String> peers)
+            throws IOException, UnzipException, DownloadFailedException, UpdateNotFoundException,
+            InvalidPackageException, PackageManager.NameNotFoundException, InsufficientStorageException,
+            UpdateDeferredException, ChecksumMismatchException, DownloadPausedException, DownloadInProgressException {
+        claim();
         try {
-            reset();
+            return downloadUpdate(path, basicAuth, zipPassword, payloadKey, rolloutUrl, digest, peers);
+        } finally {
+            release();
+        }
+    }
+
+    private Update downloadUpdate(String path, String basicAuth, String zipPassword, String payloadKey,
+                                  String rolloutUrl, String digest, List<String> peers)
+            throws IOException, UnzipException, DownloadFailedException, UpdateNotFoundException,
+            InvalidPackageException, PackageManager.NameNotFoundException, InsufficientStorageException,
+            UpdateDeferredException, ChecksumMismatchException, DownloadPausedException {
 
-            File downloadedFile = downloadFile(path, basicAuth);
-            unzipUpdate(downloadedFile, zipPassword);
+        if (payloadKey != null) {
+            PayloadDecryptor.checkKey(payloadKey);
+        }
+
+        rolloutScheduler.checkServerHint();
+        paused = false;
+        pausedDownload = null;
+
+        File generation = stagingArea.getPending();
+        DownloadJournal journal = generation == null ? null : DownloadJournal.load(generation);
+        if (journal != null && journal.isFor(path) && journal.getDigest() != null) {
+            if (digest == null) {
+                // Resumed without options, e.g. after an app restart
+                digest = journal.getDigest();
+            } else if (!digest.equalsIgnoreCase(journal.getDigest())) {
+                // A different version of the file, the part file is worthless
+                journal = null;
+            }
+        }
+        if (journal == null || !journal.isFor(path)) {
+            if (rolloutUrl != null) {
+                rolloutScheduler.checkSlot(rolloutUrl, basicAuth);
+            }
+            if (generation != null) {
+                stagingArea.discard(generation);
+            }
+            generation = stagingArea.createGeneration();
+        }
+
+        if (recordTimeline) {
+            UpdateTimeline.start(context, path);
+        }
+        Lifecycle.Span span = lifecycle.create();
+
+        try {
+            File downloadedFile = downloadFile(path, basicAuth, payloadKey, digest, peers, generation, span);
+            Update update = stage(generation, downloadedFile, zipPassword, payloadKey == null ? digest : null, span);
+            Metrics.increment(Metrics.DOWNLOADS);
 
-            return getUpdate();
+            span.done(update);
+            return update;
+        } catch (DownloadPausedException e) {
+            pausedDownload = new PausedDownload(path, basicAuth, zipPassword, payloadKey, digest, peers);
+            span.error(e);
+            throw e;
+        } catch (DownloadFailedException | InsufficientStorageException | UpdateDeferredException e) {
+            // Keep the partial download, calling download() again with the same url will resume it
+            Metrics.recordFailure(e);
+            span.error(e);
+            throw e;
         } catch (Exception e) {
-            try {
-                reset();
-            } catch (Exception _e) {
-                //
+            Metrics.recordFailure(e);
+            span.error(e);
+            stagingArea.discard(generation);
+            throw e;
+        } finally {
+            downloadObserver = null;
+            unzipObserver = null;
+            Metrics.save();
+        }
+
+    }
+
+    private File importFile(Uri uri, File generation, Lifecycle.Span parent) throws IOException,
+            InsufficientStorageException {
+        Lifecycle.Span span = parent.begin(Lifecycle.IMPORT);
+        try {
+            fileImporter = new FileImporter(context);
+            if (downloadObserver != null) {
+                fileImporter.addObserver(downloadObserver);
             }
+            fileImporter.addObserver((o, arg) -> pushProgress(span, arg));
+            File file = fileImporter.importFile(uri, generation);
+            span.end();
+            return file;
+        } catch (IOException | InsufficientStorageException e) {
+            span.fail(e);
+            throw e;
+        } finally {
+            fileImporter = null;
+        }
+    }
+
+    /**
+     * Imports an update from local storage or a document provider (SD card, USB drive) instead of
+     * downloading it. The file goes through the same extract, verify and stage steps as a download.
+     *
+     * @param uri    file:// or content:// uri of an APK or an archive
+     * @param digest Optional SHA-256 of the file
+     */
+    public Update importUpdate(Uri uri, String zipPassword, String digest) throws IOException, UnzipException,
+            UpdateNotFoundException, InvalidPackageException, PackageManager.NameNotFoundException,
+            InsufficientStorageException, ChecksumMismatchException, DownloadInProgressException {
+        claim();
+        try {
+            return importAndStage(uri, zipPassword, digest);
+        } finally {
+            release();
+        }
+    }
+
+    private Update importAndStage(Uri uri, String zipPassword, String digest) throws IOException, UnzipException,
+            UpdateNotFoundException, InvalidPackageException, PackageManager.NameNotFoundException,
+            InsufficientStorageException, ChecksumMismatchException {
+
+        File pending = stagingArea.getPending();
+        if (pending != null) {
+            stagingArea.discard(pending);
+        }
+        File generation = stagingArea.createGeneration();
+
+        if (recordTimeline) {
+            UpdateTimeline.start(context, uri.toString());
+        }
+        Lifecycle.Span span = lifecycle.create();
+
+        try {
+            File importedFile = importFile(uri, generation, span);
+            if (digest != null && !FileTools.sha256(importedFile).equalsIgnoreCase(digest)) {
+                throw new ChecksumMismatchException(importedFile.getName());
+            }
+            Update update = stage(generation, importedFile, zipPassword, digest, span);
+            Metrics.increment(Metrics.IMPORTS);
+
+            span.done(update);
+            return update;
+        } catch (Exception e) {
+            Metrics.recordFailure(e);
+            span.error(e);
+            stagingArea.discard(generation);
             throw e;
         } finally {
             downloadObserver = null;
             unzipObserver = null;
+            Metrics.save();
         }
+    }
 
+    /**
+     * Only one download or import runs at a time, whether it was started by the app or by {@link PrefetchService}.
+     */
+    private void claim() throws DownloadInProgressException {
+        if (!running.compareAndSet(false, true)) {
+            throw new DownloadInProgressException();
+        }
     }
 
     public boolean isDownloading() {
-        return fileDownloader != null || archiveManager != null;
+        return running.get() || fileDownloader != null || peerDownloader != null || fileImporter != null
+                || archiveManager != null;
     }
 }
@@ -0,0 +1,361 @@
+package de.kolbasa.apkupdater.update;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import de.kolbasa.apkupdater.downloader.Progress;
+import de.kolbasa.apkupdater.exceptions.DownloadInProgressException;
+import de.kolbasa.apkupdater.exceptions.InvalidPackageException;
+import de.kolbasa.apkupdater.exceptions.UpdateNotFoundException;
+import de.kolbasa.apkupdater.tools.ApkInstaller;
+import de.kolbasa.apkupdater.tools.FileTools;
+import de.kolbasa.apkupdater.tools.StackExtractor;
+
+/**
+ * Updates of several packages, e.g. an app and its companion apps.
+ * <p>
+ * Every package has its own {@link UpdateManager} in a subdirectory, so its staged update is independent
+ * of the others. The queue itself is stored without credentials, after a restart the staged updates can
+ * still be installed, anything else has to be enqueued again.
+ */
+public class UpdateQueue extends Observable {
+
+    public static final String QUEUED = "queued";
+    public static final String DOWNLOADING = "downloading";
+    public static final String DOWNLOADED = "downloaded";
+    public static final String INSTALLING = "installing";
+    public static final String INSTALLED = "installed";
+    public static final String FAILED = "failed";
+
+    public static final String OWNER_INSTALL = "owner";
+    public static final String ROOT_INSTALL = "root";
+
+    private static final String QUEUE_FILE = "queue.json";
+    private static final int MAX_PARALLEL_DOWNLOADS = 4;
+    private static final Pattern PACKAGE_NAME = Pattern.compile("[A-Za-z]\\w*(\\.[A-Za-z]\\w*)+");
+
+    private class Item {
+
+        private final String packageName;
+        private final String url;
+        private final List<String> dependsOn = new ArrayList<>();
+        private final UpdateManager updateManager;
+
+        private String basicAuth;
+        private String zipPassword;
+        private String payloadKey;
+
+        private volatile String state = QUEUED;
+        private volatile Progress progress;
+        private volatile JSONObject error;
+
+        private Item(JSONObject json) throws JSONException, InvalidPackageException {
+            packageName = json.getString("package");
+            if (!PACKAGE_NAME.matcher(packageName).matches()) {
+                // The name becomes a directory, that reset() deletes
+                throw new InvalidPackageException("Not a package name: " + packageName);
+            }
+            url = json.getString("url");
+            JSONArray dependencies = json.optJSONArray("dependsOn");
+            if (dependencies != null) {
+                for (int i = 0; i < dependencies.length(); i++) {
+                    dependsOn.add(dependencies.getString(i));
+                }
+            }
+            updateManager = new UpdateManager(new File(directory, packageName), context);
+        }
+
+        private void setState(String state) {
+            this.state = state;
+            broadcast(this);
+        }
+
+        private JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("package", packageName);
+            json.put("url", url);
+            JSONArray dependencies = new JSONArray();
+            for (String dependency : dependsOn) {
+                dependencies.put(dependency);
+            }
+            json.put("dependsOn", dependencies);
+            json.put("state", state);
+            if (progress != null) {
+                json.put("progress", progress.toJSON());
+            }
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+
+    }
+
+    private final File directory;
+    private final Context context;
+    private final Map<String, Item> items = new LinkedHashMap<>();
+
+    private volatile boolean running;
+    private boolean loaded;
+
+    /**
+     * The saved queue is loaded on first use, checking the staged updates reads every package from disk.
+     */
+    public UpdateQueue(File directory, Context context) {
+        this.directory = directory;
+        this.context = context;
+    }
+
+    private void broadcast(Item item) {
+        try {
+            JSONObject json = item.toJSON();
+            setChanged();
+            notifyObservers(json);
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File file = new File(directory, QUEUE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            JSONArray saved = new JSONArray(FileTools.read(file));
+            for (int i = 0; i < saved.length(); i++) {
+                Item item = new Item(saved.getJSONObject(i));
+                try {
+                    item.updateManager.getUpdate();
+                    item.state = DOWNLOADED;
+                } catch (Exception e) {
+                    item.state = QUEUED;
+                }
+                items.put(item.packageName, item);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void save() {
+        try {
+            JSONArray queue = new JSONArray();
+            for (Item item : items.values()) {
+                JSONObject json = new JSONObject();
+                json.put("package", item.packageName);
+                json.put("url", item.url);
+                json.put("dependsOn", item.toJSON().getJSONArray("dependsOn"));
+                queue.put(json);
+            }
+            // noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+            FileTools.writeAtomically(new File(directory, QUEUE_FILE), queue.toString());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized JSONArray toJSON() throws JSONException {
+        load();
+        JSONArray queue = new JSONArray();
+        for (Item item : items.values()) {
+            queue.put(item.toJSON());
+        }
+        return queue;
+    }
+
+    private void download(Item item) {
+        item.error = null;
+        item.progress = null;
+        item.setState(DOWNLOADING);
+        try {
+            item.updateManager.addDownloadObserver((o, arg) -> {
+                item.progress = (Progress) arg;
+                broadcast(item);
+            });
+            Update update = item.updateManager.download(item.url, item.basicAuth, item.zipPassword,
+                    item.payloadKey, null);
+            String packageName = update.getAppInfo() == null ? null : update.getAppInfo().getPackageName();
+            if (!item.packageName.equals(packageName)) {
+                item.updateManager.reset();
+                throw new InvalidPackageException("Expected " + item.packageName + ", got " + packageName);
+            }
+            item.setState(DOWNLOADED);
+        } catch (Exception e) {
+            item.error = StackExtractor.format(e);
+            item.setState(FAILED);
+        }
+    }
+
+    /**
+     * Downloads all items with at most maxParallel transfers at a time. Items of the same package
+     * replace the ones in the queue. Failures are reported per item, the other items continue.
+     */
+    public JSONArray download(JSONArray entries, int maxParallel) throws Exception {
+        List<Item> batch = new ArrayList<>();
+        synchronized (this) {
+            load();
+            if (running) {
+                throw new DownloadInProgressException();
+            }
+            running = true;
+        }
+
+        try {
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                Item item = new Item(entry);
+                item.basicAuth = entry.optString("basicAuth", null);
+                item.zipPassword = entry.optString("zipPassword", null);
+                item.payloadKey = entry.optString("payloadKey", null);
+                batch.add(item);
+            }
+            synchronized (this) {
+                for (Item item : batch) {
+                    items.put(item.packageName, item);
+                }
+            }
+            save();
+
+            int workers = Math.max(1, Math.min(Math.min(maxParallel, MAX_PARALLEL_DOWNLOADS), batch.size()));
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (Item item : batch) {
+                    tasks.add(executor.submit(() -> download(item)));
+                }
+                for (Future<?> task : tasks) {
+                    task.get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } finally {
+            for (Item item : batch) {
+                // Credentials are only needed for the transfer
+                item.basicAuth = null;
+                item.zipPassword = null;
+                item.payloadKey = null;
+            }
+            running = false;
+        }
+
+        return toJSON();
+    }
+
+    /**
+     * Dependencies first. The app itself comes last, because its installation ends the process.
+     */
+    private List<Item> getInstallOrder(List<Item> downloaded) throws InvalidPackageException {
+        Map<String, Item> pending = new LinkedHashMap<>();
+        for (Item item : downloaded) {
+            pending.put(item.packageName, item);
+        }
+        Item self = pending.remove(context.getPackageName());
+
+        List<Item> order = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            Item next = null;
+            for (Item item : pending.values()) {
+                boolean ready = true;
+                for (String dependency : item.dependsOn) {
+                    if (pending.containsKey(dependency)) {
+                        ready = false;
+                        break;
+                    }
+                }
+                if (ready) {
+                    next = item;
+                    break;
+                }
+            }
+            if (next == null) {
+                throw new InvalidPackageException("Cyclic dependencies: " + pending.keySet());
+            }
+            order.add(next);
+            pending.remove(next.packageName);
+        }
+
+        if (self != null) {
+            order.add(self);
+        }
+        return order;
+    }
+
+    /**
+     * Installs all downloaded items in dependency order. Stops at the first failure,
+     * so that no package is installed without its dependencies.
+     */
+    public JSONArray install(String method) throws Exception {
+        List<Item> downloaded = new ArrayList<>();
+        synchronized (this) {
+            load();
+            if (running) {
+                throw new DownloadInProgressException();
+            }
+            for (Item item : items.values()) {
+                if (DOWNLOADED.equals(item.state)) {
+                    downloaded.add(item);
+                }
+            }
+        }
+        if (downloaded.isEmpty()) {
+            throw new UpdateNotFoundException(directory.getCanonicalPath());
+        }
+
+        for (Item item : getInstallOrder(downloaded)) {
+            item.setState(INSTALLING);
+            try {
+                File apk = item.updateManager.getUpdate().getInstallFile();
+                if (ROOT_INSTALL.equals(method)) {
+                    // Synchronous, the next package is only installed after this one
+                    ApkInstaller.rootInstall(context, apk);
+                } else if (item.packageName.equals(context.getPackageName())) {
+                    // Ends the process, there is no result to wait for
+                    ApkInstaller.ownerInstall(context, apk);
+                } else {
+                    // Committing only queues the session, the next package waits for the result
+                    ApkInstaller.ownerInstallAndWait(context, apk);
+                }
+                item.setState(INSTALLED);
+            } catch (Exception e) {
+                item.error = StackExtractor.format(e);
+                item.setState(FAILED);
+                throw e;
+            }
+        }
+
+        return toJSON();
+    }
+
+    public synchronized void reset() throws DownloadInProgressException {
+        if (running) {
+            throw new DownloadInProgressException();
+        }
+        for (Item item : items.values()) {
+            item.updateManager.reset();
+        }
+        items.clear();
+        FileTools.delete(directory);
+    }
+
+}
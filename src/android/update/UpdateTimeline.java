@@ -0,0 +1,163 @@
+package de.kolbasa.apkupdater.update;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import de.kolbasa.apkupdater.exceptions.TimelineNotFoundException;
+import de.kolbasa.apkupdater.tools.AppData;
+import de.kolbasa.apkupdater.tools.Metrics;
+
+/**
+ * Timestamps of the phases of the last update. They are stored in the shared preferences,
+ * because the install replaces the process and the last phases are recorded by the new one.
+ * Every write is a synchronous commit(), the process may be killed right after it.
+ */
+public class UpdateTimeline {
+
+    public static final String DOWNLOAD_START = "downloadStart";
+    public static final String DOWNLOAD_END = "downloadEnd";
+    public static final String EXTRACT_END = "extractEnd";
+    public static final String STAGED = "staged";
+    public static final String INSTALL_START = "installStart";
+    public static final String PACKAGE_REPLACED = "packageReplaced";
+    public static final String RELAUNCHED = "relaunched";
+
+    public static final String INTENT_INSTALL = "intent";
+    public static final String ROOT_INSTALL = "root";
+    public static final String OWNER_INSTALL = "owner";
+
+    private static final String[] PHASES = {
+            DOWNLOAD_START, DOWNLOAD_END, EXTRACT_END, STAGED, INSTALL_START, PACKAGE_REPLACED, RELAUNCHED
+    };
+
+    private static final String PREFERENCES = "de.kolbasa.apkupdater.timeline";
+    private static final String URL = "url";
+    private static final String FROM_VERSION = "fromVersion";
+    private static final String TO_VERSION = "toVersion";
+    private static final String INSTALL_STRATEGY = "installStrategy";
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static int getInstalledVersionCode(Context context) {
+        try {
+            return AppData.getPackageInfo(context).getAppVersionCode();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Starts a new timeline. A resumed download continues the timeline of the interrupted one.
+     */
+    public static synchronized void start(Context context, String url) {
+        SharedPreferences preferences = getPreferences(context);
+        if (url.equals(preferences.getString(URL, null)) && preferences.contains(DOWNLOAD_START)
+                && !preferences.contains(STAGED)) {
+            return;
+        }
+        preferences.edit()
+                .clear()
+                .putString(URL, url)
+                .putInt(FROM_VERSION, getInstalledVersionCode(context))
+                .putLong(DOWNLOAD_START, System.currentTimeMillis())
+                .commit();
+    }
+
+    public static synchronized void mark(Context context, String phase) {
+        SharedPreferences preferences = getPreferences(context);
+        if (!preferences.contains(DOWNLOAD_START)) {
+            return;
+        }
+        preferences.edit().putLong(phase, System.currentTimeMillis()).commit();
+    }
+
+    public static synchronized void installStarted(Context context, String strategy) {
+        SharedPreferences preferences = getPreferences(context);
+        if (!preferences.contains(DOWNLOAD_START)) {
+            return;
+        }
+        preferences.edit()
+                .putLong(INSTALL_START, System.currentTimeMillis())
+                .putString(INSTALL_STRATEGY, strategy)
+                .commit();
+    }
+
+    public static synchronized void staged(Context context, Update update) {
+        SharedPreferences preferences = getPreferences(context);
+        if (!preferences.contains(DOWNLOAD_START)) {
+            return;
+        }
+        SharedPreferences.Editor editor = preferences.edit().putLong(STAGED, System.currentTimeMillis());
+        Integer versionCode = update.getAppInfo() == null ? null : update.getAppInfo().getAppVersionCode();
+        if (versionCode != null) {
+            editor.putInt(TO_VERSION, versionCode);
+        }
+        editor.commit();
+    }
+
+    /**
+     * Called on every app start. The first start with the new version completes the timeline.
+     */
+    public static synchronized void onAppStart(Context context) {
+        SharedPreferences preferences = getPreferences(context);
+        if (!preferences.contains(INSTALL_START) || preferences.contains(RELAUNCHED)) {
+            return;
+        }
+        if (preferences.contains(PACKAGE_REPLACED)
+                || preferences.getInt(TO_VERSION, -2) == getInstalledVersionCode(context)) {
+            preferences.edit().putLong(RELAUNCHED, System.currentTimeMillis()).commit();
+
+            // The install itself can only be measured by the new process
+            Metrics.increment(Metrics.INSTALLS);
+            if (preferences.contains(PACKAGE_REPLACED)) {
+                long millis = preferences.getLong(PACKAGE_REPLACED, 0) - preferences.getLong(INSTALL_START, 0);
+                Metrics.record(Metrics.INSTALL_MILLIS + "." + preferences.getString(INSTALL_STRATEGY, INTENT_INSTALL), millis);
+            }
+            Metrics.save();
+        }
+    }
+
+    public static synchronized JSONObject toJSON(Context context) throws JSONException, TimelineNotFoundException {
+        SharedPreferences preferences = getPreferences(context);
+        if (!preferences.contains(DOWNLOAD_START)) {
+            throw new TimelineNotFoundException();
+        }
+
+        JSONObject timeline = new JSONObject();
+        timeline.put(URL, preferences.getString(URL, null));
+        timeline.put(FROM_VERSION, preferences.getInt(FROM_VERSION, -1));
+        if (preferences.contains(TO_VERSION)) {
+            timeline.put(TO_VERSION, preferences.getInt(TO_VERSION, -1));
+        }
+        if (preferences.contains(INSTALL_STRATEGY)) {
+            timeline.put(INSTALL_STRATEGY, preferences.getString(INSTALL_STRATEGY, null));
+        }
+
+        // Milliseconds since the previous recorded phase
+        JSONObject durations = new JSONObject();
+        long previous = -1;
+        for (String phase : PHASES) {
+            if (!preferences.contains(phase)) {
+                continue;
+            }
+            long time = preferences.getLong(phase, 0);
+            timeline.put(phase, time);
+            if (previous >= 0) {
+                durations.put(phase, time - previous);
+            }
+            previous = time;
+        }
+        timeline.put("durations", durations);
+
+        long start = preferences.getLong(DOWNLOAD_START, 0);
+        timeline.put("totalMillis", previous - start);
+        timeline.put("completed", preferences.contains(RELAUNCHED));
+        return timeline;
+    }
+
+}
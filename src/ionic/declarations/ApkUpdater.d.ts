@@ -1,9 +1,20 @@
 /// <reference path="interfaces/App.d.ts" />
 /// <reference path="interfaces/AuthConfig.d.ts" />
 /// <reference path="interfaces/Config.d.ts" />
+/// <reference path="interfaces/InterruptedDownload.d.ts" />
+/// <reference path="interfaces/LifecycleEvent.d.ts" />
+/// <reference path="interfaces/Metrics.d.ts" />
+/// <reference path="interfaces/PluginConfig.d.ts" />
+/// <reference path="interfaces/PrefetchConfig.d.ts" />
 /// <reference path="interfaces/Progress.d.ts" />
+/// <reference path="interfaces/QueueConfig.d.ts" />
+/// <reference path="interfaces/QueueItem.d.ts" />
 /// <reference path="interfaces/Update.d.ts" />
+/// <reference path="interfaces/UpdateTimeline.d.ts" />
 /// <reference path="interfaces/Version.d.ts" />
+/// <reference path="interfaces/WebAssets.d.ts" />
+/// <reference path="interfaces/WebAssetsConfig.d.ts" />
+/// <reference path="interfaces/WebAssetsUpdate.d.ts" />
 
 declare module 'cordova-plugin-apkupdater' {
 
@@ -11,14 +22,54 @@ declare module 'cordova-plugin-apkupdater' {
 
         static getInstalledVersion(success?: Function, failure?: Function): Promise<App>;
 
+        static configure(config: PluginConfig, success?: Function, failure?: Function): Promise<void>;
+
         static download(updateUrl: string, config?: Config, success?: Function, failure?: Function): Promise<Update>;
 
+        static schedulePrefetch(updateUrl: string, config?: PrefetchConfig, success?: Function, failure?: Function): Promise<boolean>;
+
+        static cancelPrefetch(success?: Function, failure?: Function): Promise<void>;
+
+        static getInterruptedDownload(success?: Function, failure?: Function): Promise<InterruptedDownload>;
+
+        static resumeDownload(config?: Config, success?: Function, failure?: Function): Promise<Update>;
+
+        static importUpdate(uri: string, config?: Config, success?: Function, failure?: Function): Promise<Update>;
+
+        static addLifecycleObserver(observer: (event: LifecycleEvent) => void): void;
+
         static stop(success?: Function, failure?: Function): Promise<void>;
 
+        static pause(success?: Function, failure?: Function): Promise<void>;
+
+        static resume(config?: Config, success?: Function, failure?: Function): Promise<Update>;
+
         static getDownloadedUpdate(success?: Function, failure?: Function): Promise<Update>;
 
         static reset(success?: Function, failure?: Function): Promise<void>;
 
+        static getUpdateTimeline(success?: Function, failure?: Function): Promise<UpdateTimeline>;
+
+        static getMetrics(success?: Function, failure?: Function): Promise<Metrics>;
+
+        static resetMetrics(success?: Function, failure?: Function): Promise<void>;
+
+
+        static downloadQueue(items: QueueItem[], config?: QueueConfig, success?: Function, failure?: Function): Promise<QueueItemState[]>;
+
+        static getQueue(success?: Function, failure?: Function): Promise<QueueItemState[]>;
+
+        static installQueue(config?: { method?: 'owner' | 'root' }, success?: Function, failure?: Function): Promise<QueueItemState[]>;
+
+        static resetQueue(success?: Function, failure?: Function): Promise<void>;
+
+
+        static downloadWebAssets(manifestUrl: string, config?: WebAssetsConfig, success?: Function, failure?: Function): Promise<WebAssetsUpdate>;
+
+        static getWebAssets(success?: Function, failure?: Function): Promise<WebAssets>;
+
+        static resetWebAssets(success?: Function, failure?: Function): Promise<void>;
+
 
         static canRequestPackageInstalls(success?: Function, failure?: Function): Promise<boolean>;
 
@@ -7,6 +7,27 @@ declare module 'cordova-plugin-apkupdater' {
          */
         zipPassword?: string;
 
+        /**
+         * Base64 encoded AES key, if an encrypted payload (*.enc) is used.
+         */
+        payloadKey?: string;
+
+        /**
+         * Rollout of the update, only download() uses it. Devices outside their slot are rejected with the scheduled time.
+         */
+        rolloutUrl?: string;
+
+        /**
+         * SHA-256 of the file, as published by your server. The download fails if it does not match.
+         * Required to fetch the file from peers.
+         */
+        digest?: string;
+
+        /**
+         * "host:port" of devices that serve the file, in addition to the ones found on the local network.
+         */
+        peers?: string[];
+
         /**
          * HTTP basic access authentication.
          */
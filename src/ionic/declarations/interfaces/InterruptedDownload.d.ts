@@ -0,0 +1,17 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface InterruptedDownload extends Progress {
+
+        /**
+         * Download url.
+         */
+        url: string;
+
+        /**
+         * File name.
+         */
+        name: string;
+
+    }
+
+}
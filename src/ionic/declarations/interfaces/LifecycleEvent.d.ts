@@ -0,0 +1,50 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface LifecycleEvent {
+
+        /**
+         * connect, download, import, extract, verify, stage, install, cleanup, done, error or interrupted.
+         */
+        type: string;
+
+        /**
+         * start, progress, end or error. Not set for done and error events, they close the parent span.
+         */
+        state?: string;
+
+        /**
+         * Id of the phase. All events of a phase have the same id.
+         */
+        span: number;
+
+        /**
+         * Id of the download the phase belongs to.
+         */
+        parent?: number;
+
+        /**
+         * Milliseconds since boot, not affected by changes of the clock.
+         */
+        time: number;
+
+        /**
+         * Set when a span is closed.
+         */
+        startTime?: number;
+
+        duration?: number;
+
+        progress?: Progress;
+
+        update?: Update;
+
+        error?: { message: string, stack: string, details?: object };
+
+        /**
+         * Set for interrupted events: a download of an earlier app session that can be resumed.
+         */
+        download?: InterruptedDownload;
+
+    }
+
+}
@@ -0,0 +1,39 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface Histogram {
+
+        /**
+         * Upper bounds of the buckets. The last bucket counts everything above the highest bound.
+         */
+        bounds: number[];
+
+        counts: number[];
+
+        count: number;
+
+        sum: number;
+
+        mean: number;
+
+    }
+
+    interface Metrics {
+
+        /**
+         * downloads, downloadBytes, reusedBytes, peerBytes, imports, importedBytes, resumedDownloads, retries, extractedBytes, installs
+         */
+        counters: { [name: string]: number };
+
+        /**
+         * Number of failures by exception name, e.g. DownloadFailedException.
+         */
+        failures: { [name: string]: number };
+
+        /**
+         * downloadKBps, extractMillisPerMB, installMillis.intent, installMillis.root, installMillis.owner
+         */
+        histograms: { [name: string]: Histogram };
+
+    }
+
+}
@@ -0,0 +1,30 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface PluginConfig {
+
+        /**
+         * Update servers. DNS, TCP and TLS are done in advance, so the first download reuses a warm connection.
+         */
+        hosts?: string[];
+
+        /**
+         * SHA-256 of the signing certificates, hex encoded. The install methods reject an update of the app
+         * itself that is not signed with one of them. Other packages and the default: the certificate of the
+         * installed version.
+         */
+        certificates?: string[];
+
+        /**
+         * Serve the update to other devices on the local network and fetch updates from them.
+         * Only updates downloaded with a digest are shared.
+         */
+        peerMode?: boolean;
+
+        /**
+         * Port of the peer server. Default: any free port
+         */
+        peerPort?: number;
+
+    }
+
+}
@@ -0,0 +1,39 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface PrefetchConfig {
+
+        /**
+         * If an encrypted zip file is used.
+         */
+        zipPassword?: string;
+
+        /**
+         * Base64 encoded AES key, if an encrypted payload (*.enc) is used.
+         */
+        payloadKey?: string;
+
+        rolloutUrl?: string;
+
+        /**
+         * HTTP basic access authentication.
+         */
+        basicAuth?: AuthConfig;
+
+        /**
+         * Only download on unmetered networks, e.g. wifi. Default: true
+         */
+        unmetered?: boolean;
+
+        /**
+         * Only download while the device is charging. Default: false
+         */
+        charging?: boolean;
+
+        /**
+         * Only download while the device is idle. Default: false
+         */
+        idle?: boolean;
+
+    }
+
+}
@@ -3,14 +3,32 @@ declare module 'cordova-plugin-apkupdater' {
     interface Progress {
 
         /**
-         * Flaoting point.
+         * Flaoting point. -1 if the total size is not known yet.
          */
         progress: number;
 
+        /**
+         * -1 if the total size is not known yet, e.g. for a chunked response.
+         */
         bytes: number;
 
         bytesWritten: number;
 
+        /**
+         * Average throughput since the start of the transfer.
+         */
+        bytesPerSecond?: number;
+
+        /**
+         * Download only. Milliseconds until the server responded.
+         */
+        connectMillis?: number;
+
+        /**
+         * Download only. Milliseconds saved by a connection opened in advance, see configure().
+         */
+        savedMillis?: number;
+
     }
 
 }
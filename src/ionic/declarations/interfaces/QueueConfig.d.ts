@@ -0,0 +1,17 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface QueueConfig {
+
+        /**
+         * Number of concurrent downloads. Default: 2, maximum: 4
+         */
+        maxParallel?: number;
+
+        /**
+         * Monitor the state and progress of the items.
+         */
+        onProgress?: (item: QueueItemState) => void;
+
+    }
+
+}
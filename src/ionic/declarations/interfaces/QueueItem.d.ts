@@ -0,0 +1,44 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface QueueItem {
+
+        /**
+         * Package name of the apk. The download fails if the apk has a different one.
+         */
+        package: string;
+
+        url: string;
+
+        /**
+         * Packages that have to be installed before this one.
+         */
+        dependsOn?: string[];
+
+        zipPassword?: string;
+
+        payloadKey?: string;
+
+        basicAuth?: AuthConfig;
+
+    }
+
+    interface QueueItemState {
+
+        package: string;
+
+        url: string;
+
+        dependsOn: string[];
+
+        /**
+         * queued, downloading, downloaded, installing, installed or failed.
+         */
+        state: string;
+
+        progress?: Progress;
+
+        error?: { message: string, stack: string, details?: object };
+
+    }
+
+}
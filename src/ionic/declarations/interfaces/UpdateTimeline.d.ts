@@ -0,0 +1,56 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface UpdateTimeline {
+
+        url: string;
+
+        /**
+         * Version code of the app when the download was started.
+         */
+        fromVersion: number;
+
+        /**
+         * Version code of the downloaded update.
+         */
+        toVersion?: number;
+
+        /**
+         * intent, root or owner.
+         */
+        installStrategy?: string;
+
+        /**
+         * Unix timestamps of the phases. Missing phases have not been reached (yet).
+         */
+        downloadStart: number;
+
+        downloadEnd?: number;
+
+        extractEnd?: number;
+
+        staged?: number;
+
+        installStart?: number;
+
+        packageReplaced?: number;
+
+        relaunched?: number;
+
+        /**
+         * Milliseconds between each recorded phase and the previous one.
+         */
+        durations: { [phase: string]: number };
+
+        /**
+         * Milliseconds from the download start to the last recorded phase.
+         */
+        totalMillis: number;
+
+        /**
+         * True once the app was started with the new version.
+         */
+        completed: boolean;
+
+    }
+
+}
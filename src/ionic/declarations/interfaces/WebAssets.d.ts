@@ -0,0 +1,17 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface WebAssets {
+
+        /**
+         * Version from the manifest of the active web assets. Not set if the assets of the apk are used.
+         */
+        version?: string;
+
+        /**
+         * Directory of the active web assets.
+         */
+        path?: string;
+
+    }
+
+}
@@ -0,0 +1,12 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface WebAssetsConfig {
+
+        /**
+         * HTTP basic access authentication.
+         */
+        basicAuth?: AuthConfig;
+
+    }
+
+}
@@ -0,0 +1,32 @@
+declare module 'cordova-plugin-apkupdater' {
+
+    interface WebAssetsUpdate {
+
+        /**
+         * Version from the manifest.
+         */
+        version?: string;
+
+        /**
+         * Number of files in the manifest.
+         */
+        files: number;
+
+        /**
+         * Number of files that were downloaded.
+         */
+        downloaded: number;
+
+        /**
+         * Number of files taken over from the previous web asset update.
+         */
+        reused: number;
+
+        /**
+         * Downloaded bytes.
+         */
+        bytes: number;
+
+    }
+
+}
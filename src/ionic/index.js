@@ -8,14 +8,50 @@ var ApkUpdater = /** @class */ (function () {
         var apkUpdater = plugin();
         return apkUpdater.getInstalledVersion.apply(apkUpdater, arguments);
     };
+    ApkUpdater.configure = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.configure.apply(apkUpdater, arguments);
+    };
     ApkUpdater.download = function () {
         var apkUpdater = plugin();
         return apkUpdater.download.apply(apkUpdater, arguments);
     };
+    ApkUpdater.schedulePrefetch = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.schedulePrefetch.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.cancelPrefetch = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.cancelPrefetch.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.getInterruptedDownload = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.getInterruptedDownload.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.resumeDownload = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.resumeDownload.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.importUpdate = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.importUpdate.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.addLifecycleObserver = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.addLifecycleObserver.apply(apkUpdater, arguments);
+    };
     ApkUpdater.stop = function () {
         var apkUpdater = plugin();
         return apkUpdater.stop.apply(apkUpdater, arguments);
     };
+    ApkUpdater.pause = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.pause.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.resume = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.resume.apply(apkUpdater, arguments);
+    };
     ApkUpdater.getDownloadedUpdate = function () {
         var apkUpdater = plugin();
         return apkUpdater.getDownloadedUpdate.apply(apkUpdater, arguments);
@@ -24,6 +60,46 @@ var ApkUpdater = /** @class */ (function () {
         var apkUpdater = plugin();
         return apkUpdater.reset.apply(apkUpdater, arguments);
     };
+    ApkUpdater.getUpdateTimeline = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.getUpdateTimeline.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.getMetrics = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.getMetrics.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.resetMetrics = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.resetMetrics.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.downloadQueue = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.downloadQueue.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.getQueue = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.getQueue.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.installQueue = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.installQueue.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.resetQueue = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.resetQueue.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.downloadWebAssets = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.downloadWebAssets.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.getWebAssets = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.getWebAssets.apply(apkUpdater, arguments);
+    };
+    ApkUpdater.resetWebAssets = function () {
+        var apkUpdater = plugin();
+        return apkUpdater.resetWebAssets.apply(apkUpdater, arguments);
+    };
     ApkUpdater.canRequestPackageInstalls = function () {
         var apkUpdater = plugin();
         return apkUpdater.canRequestPackageInstalls.apply(apkUpdater, arguments);
@@ -9,16 +9,61 @@ export default class ApkUpdater {
         return apkUpdater.getInstalledVersion.apply(apkUpdater, arguments);
     }
 
+    static configure() {
+        let apkUpdater = plugin();
+        return apkUpdater.configure.apply(apkUpdater, arguments);
+    }
+
     static download() {
         let apkUpdater = plugin();
         return apkUpdater.download.apply(apkUpdater, arguments);
     }
 
+    static schedulePrefetch() {
+        let apkUpdater = plugin();
+        return apkUpdater.schedulePrefetch.apply(apkUpdater, arguments);
+    }
+
+    static cancelPrefetch() {
+        let apkUpdater = plugin();
+        return apkUpdater.cancelPrefetch.apply(apkUpdater, arguments);
+    }
+
+    static getInterruptedDownload() {
+        let apkUpdater = plugin();
+        return apkUpdater.getInterruptedDownload.apply(apkUpdater, arguments);
+    }
+
+    static resumeDownload() {
+        let apkUpdater = plugin();
+        return apkUpdater.resumeDownload.apply(apkUpdater, arguments);
+    }
+
+    static importUpdate() {
+        let apkUpdater = plugin();
+        return apkUpdater.importUpdate.apply(apkUpdater, arguments);
+    }
+
+    static addLifecycleObserver() {
+        let apkUpdater = plugin();
+        return apkUpdater.addLifecycleObserver.apply(apkUpdater, arguments);
+    }
+
     static stop() {
         let apkUpdater = plugin();
         return apkUpdater.stop.apply(apkUpdater, arguments);
     }
 
+    static pause() {
+        let apkUpdater = plugin();
+        return apkUpdater.pause.apply(apkUpdater, arguments);
+    }
+
+    static resume() {
+        let apkUpdater = plugin();
+        return apkUpdater.resume.apply(apkUpdater, arguments);
+    }
+
     static getDownloadedUpdate() {
         let apkUpdater = plugin();
         return apkUpdater.getDownloadedUpdate.apply(apkUpdater, arguments);
@@ -29,6 +74,58 @@ export default class ApkUpdater {
         return apkUpdater.reset.apply(apkUpdater, arguments);
     }
 
+    static getUpdateTimeline() {
+        let apkUpdater = plugin();
+        return apkUpdater.getUpdateTimeline.apply(apkUpdater, arguments);
+    }
+
+    static getMetrics() {
+        let apkUpdater = plugin();
+        return apkUpdater.getMetrics.apply(apkUpdater, arguments);
+    }
+
+    static resetMetrics() {
+        let apkUpdater = plugin();
+        return apkUpdater.resetMetrics.apply(apkUpdater, arguments);
+    }
+
+
+    static downloadQueue() {
+        let apkUpdater = plugin();
+        return apkUpdater.downloadQueue.apply(apkUpdater, arguments);
+    }
+
+    static getQueue() {
+        let apkUpdater = plugin();
+        return apkUpdater.getQueue.apply(apkUpdater, arguments);
+    }
+
+    static installQueue() {
+        let apkUpdater = plugin();
+        return apkUpdater.installQueue.apply(apkUpdater, arguments);
+    }
+
+    static resetQueue() {
+        let apkUpdater = plugin();
+        return apkUpdater.resetQueue.apply(apkUpdater, arguments);
+    }
+
+
+    static downloadWebAssets() {
+        let apkUpdater = plugin();
+        return apkUpdater.downloadWebAssets.apply(apkUpdater, arguments);
+    }
+
+    static getWebAssets() {
+        let apkUpdater = plugin();
+        return apkUpdater.getWebAssets.apply(apkUpdater, arguments);
+    }
+
+    static resetWebAssets() {
+        let apkUpdater = plugin();
+        return apkUpdater.resetWebAssets.apply(apkUpdater, arguments);
+    }
+
 
     static canRequestPackageInstalls() {
         let apkUpdater = plugin();
@@ -0,0 +1,63 @@
+package de.kolbasa.apkupdater.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionWarmerTest {
+
+    private static final long COLD_MILLIS = 200;
+
+    private TestServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer(exchange -> {
+            if (exchange.index == 0) {
+                // Handshake of a new connection
+                Thread.sleep(COLD_MILLIS);
+            }
+            exchange.respond(200);
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void unknownHost() throws Exception {
+        URL url = new URL("https://unknown.example.com/update.apk");
+        assertEquals(-1, ConnectionWarmer.getColdConnectMillis(url));
+        assertEquals(-1, ConnectionWarmer.getSavedMillis(url, 100));
+    }
+
+    @Test
+    public void savedMillisAreNeverNegative() throws Exception {
+        ConnectionWarmer.warmUp(server.getUrl("/"));
+        URL url = new URL(server.getUrl("/update.apk"));
+
+        long cold = ConnectionWarmer.getColdConnectMillis(url);
+        assertTrue(cold >= COLD_MILLIS);
+        assertEquals(cold - 10, ConnectionWarmer.getSavedMillis(url, 10));
+        assertEquals(0, ConnectionWarmer.getSavedMillis(url, cold + 1000));
+    }
+
+    @Test
+    public void warmConnectionDoesNotReplaceColdSample() throws Exception {
+        ConnectionWarmer.warmUp(server.getUrl("/"));
+        ConnectionWarmer.warmUp(server.getUrl("/"));
+
+        // The second warm-up reused the pooled connection
+        assertEquals(1, server.getConnections());
+        assertEquals(2, server.getRequests());
+        assertTrue(ConnectionWarmer.getColdConnectMillis(new URL(server.getUrl("/"))) >= COLD_MILLIS);
+    }
+
+}
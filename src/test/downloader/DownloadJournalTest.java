@@ -0,0 +1,114 @@
+package de.kolbasa.apkupdater.downloader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadJournalTest {
+
+    private static final String URL = "https://example.com/update.apk";
+    private static final String DIGEST = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private DownloadJournal journal;
+
+    @Before
+    public void setUp() {
+        dir = folder.getRoot();
+        journal = DownloadJournal.load(dir);
+        journal.start(URL, "update.apk", "\"etag\"", null, 100, DIGEST);
+    }
+
+    @Test
+    public void emptyJournal() {
+        DownloadJournal empty = DownloadJournal.load(folder.getRoot());
+        assertFalse(empty.exists());
+        assertEquals(0, empty.getBytesCommitted());
+    }
+
+    @Test
+    public void contiguousCommits() throws Exception {
+        journal.commit(0, 10);
+        journal.commit(10, 20);
+        assertEquals(20, journal.getBytesCommitted());
+        assertEquals(-1, journal.getNextCommitted(20));
+    }
+
+    @Test
+    public void gapsAreNotCommitted() throws Exception {
+        journal.commit(40, 60);
+        journal.commit(0, 10);
+        assertEquals(10, journal.getBytesCommitted());
+        assertEquals(40, journal.getNextCommitted(10));
+        assertEquals(30, journal.getCommittedLength());
+        assertTrue(journal.isCommitted(40, 60));
+        assertFalse(journal.isCommitted(10, 40));
+    }
+
+    @Test
+    public void commitCoalescesFollowingSegments() throws Exception {
+        journal.commit(20, 30);
+        journal.commit(40, 50);
+        journal.commit(60, 70);
+        // Bridges all three segments at once
+        journal.commit(0, 65);
+        assertEquals(70, journal.getBytesCommitted());
+        assertEquals(70, journal.getCommittedLength());
+        assertTrue(journal.isCommitted(0, 70));
+    }
+
+    @Test
+    public void commitMergesContainedSegments() throws Exception {
+        journal.commit(0, 10);
+        journal.commit(2, 3);
+        journal.commit(5, 12);
+        assertEquals(12, journal.getBytesCommitted());
+        assertEquals(12, journal.getCommittedLength());
+    }
+
+    @Test
+    public void truncateDropsLaterSegments() throws Exception {
+        journal.commit(0, 30);
+        journal.commit(50, 80);
+        journal.truncate(20);
+        assertEquals(20, journal.getBytesCommitted());
+        assertEquals(-1, journal.getNextCommitted(20));
+    }
+
+    @Test
+    public void survivesReload() throws Exception {
+        journal.commit(0, 10);
+        journal.commit(50, 60);
+
+        DownloadJournal loaded = DownloadJournal.load(dir);
+        assertTrue(loaded.isFor(URL));
+        assertEquals("update.apk", loaded.getFileName());
+        assertEquals("\"etag\"", loaded.getETag());
+        assertNull(loaded.getLastModified());
+        assertEquals(100, loaded.getBytes());
+        assertEquals(DIGEST, loaded.getDigest());
+        assertEquals(10, loaded.getBytesCommitted());
+        assertEquals(50, loaded.getNextCommitted(10));
+        assertEquals(new File(dir, "update.apk.part"), loaded.getPartFile());
+    }
+
+    @Test
+    public void clearDeletesTheJournal() throws Exception {
+        journal.commit(0, 10);
+        journal.clear();
+        assertFalse(DownloadJournal.load(dir).exists());
+        assertNull(journal.getDigest());
+    }
+
+}
@@ -0,0 +1,539 @@
+package de.kolbasa.apkupdater.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.kolbasa.apkupdater.exceptions.DownloadFailedException;
+import de.kolbasa.apkupdater.tools.JvmSystemCalls;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs {@link FileDownloader} against a local server that misbehaves in the ways a CDN or an overloaded
+ * update server does: dropped connections, stalls, errors with and without Retry-After, broken range
+ * support and many clients at once.
+ */
+public class FileDownloaderFaultTest {
+
+    private static final int FILE_BYTES = 3 * 1024 * 1024 + 123;
+    private static final int DROP_AFTER_BYTES = 1536 * 1024;
+    private static final String ETAG = "\"v1\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = random(FILE_BYTES, 1);
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<>());
+    private TestServer server;
+
+    @BeforeClass
+    public static void setUpClass() {
+        JvmSystemCalls.install();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer(exchange -> serve(exchange, data, 0, true));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    /**
+     * Answers like a well-behaved server. A positive dropAfter closes the connection after that many body bytes.
+     */
+    private void serve(TestServer.Exchange exchange, byte[] file, int dropAfter, boolean rangeSupport)
+            throws IOException {
+        String range = exchange.getHeader("Range");
+        ranges.add(range);
+
+        int start = 0;
+        int end = file.length;
+        Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("ETag", ETAG);
+        int code = 200;
+        if (range != null && rangeSupport) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            if (!bounds[1].isEmpty()) {
+                end = Integer.parseInt(bounds[1]) + 1;
+            }
+            code = 206;
+            headers.put("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + file.length);
+        }
+        headers.put("Content-Length", String.valueOf(end - start));
+        exchange.writeHead(code, headers);
+
+        if (dropAfter > 0 && dropAfter < end - start) {
+            exchange.out.write(file, start, dropAfter);
+            exchange.out.flush();
+            exchange.close();
+            return;
+        }
+        exchange.out.write(file, start, end - start);
+        exchange.out.flush();
+    }
+
+    private FileDownloader createDownloader() {
+        FileDownloader downloader = new FileDownloader();
+        downloader.setTimeouts(2000, 500, 10);
+        return downloader;
+    }
+
+    private File download(FileDownloader downloader, String path, File dir) throws Exception {
+        return downloader.download(server.getUrl(path), dir, null);
+    }
+
+    private void assertDownloaded(File file, byte[] expected) throws IOException {
+        assertNotNull(file);
+        assertArrayEquals(expected, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getParentFile(), file.getName() + ".part").exists());
+    }
+
+    @Test
+    public void wellBehavedServer() throws Exception {
+        File file = download(createDownloader(), "/update.apk", folder.getRoot());
+        assertEquals("update.apk", file.getName());
+        assertDownloaded(file, data);
+        assertEquals(Collections.singletonList((String) null), ranges);
+    }
+
+    @Test
+    public void midStreamResetIsResumed() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> serve(exchange, data,
+                requests.getAndIncrement() == 0 ? DROP_AFTER_BYTES : 0, true));
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertEquals(2, ranges.size());
+        assertNull(ranges.get(0));
+        // At least the first journal interval was kept
+        assertTrue(ranges.get(1), ranges.get(1).matches("bytes=\\d{7,}-"));
+    }
+
+    @Test
+    public void stalledTransferTimesOutAndIsResumed() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> {
+            if (requests.getAndIncrement() == 0) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Content-Length", String.valueOf(data.length));
+                headers.put("ETag", ETAG);
+                exchange.writeHead(200, headers);
+                exchange.out.write(data, 0, DROP_AFTER_BYTES);
+                exchange.out.flush();
+                // Longer than the read timeout
+                Thread.sleep(1500);
+                exchange.close();
+            } else {
+                serve(exchange, data, 0, true);
+            }
+        });
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertEquals(2, requests.get());
+        assertTrue(ranges.get(0), ranges.get(0).matches("bytes=\\d{7,}-"));
+    }
+
+    @Test
+    public void retryAfterIsRespected() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> {
+            if (requests.getAndIncrement() == 0) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Retry-After", "1");
+                exchange.respond(503, headers, new byte[0]);
+            } else {
+                serve(exchange, data, 0, true);
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertTrue(System.currentTimeMillis() - start >= 1000);
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void tooManyRequestsIsRetried() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> {
+            if (requests.getAndIncrement() < 2) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Retry-After", "0");
+                exchange.respond(429, headers, new byte[0]);
+            } else {
+                serve(exchange, data, 0, true);
+            }
+        });
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void retryAfterBeyondTheLimitFailsImmediately() throws Exception {
+        server.setHandler(exchange -> {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Retry-After", "3600");
+            exchange.respond(503, headers, new byte[0]);
+        });
+
+        FileDownloader downloader = createDownloader();
+        try {
+            download(downloader, "/update.apk", folder.getRoot());
+            fail();
+        } catch (DownloadFailedException e) {
+            assertEquals(3600 * 1000, downloader.getRetryAfterMillis());
+        }
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void serverErrorsGiveUpAfterFourAttempts() throws Exception {
+        server.setHandler(exchange -> exchange.respond(500));
+        try {
+            download(createDownloader(), "/update.apk", folder.getRoot());
+            fail();
+        } catch (DownloadFailedException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("500"));
+        }
+        assertEquals(4, server.getRequests());
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws Exception {
+        server.setHandler(exchange -> exchange.respond(404));
+        try {
+            download(createDownloader(), "/update.apk", folder.getRoot());
+            fail();
+        } catch (DownloadFailedException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("404"));
+        }
+        assertEquals(1, server.getRequests());
+    }
+
+    @Test
+    public void missingRangeSupportStartsOver() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> serve(exchange, data,
+                requests.getAndIncrement() == 0 ? DROP_AFTER_BYTES : 0, false));
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void wrongContentRangeStartsOver() throws Exception {
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> {
+            int request = requests.getAndIncrement();
+            if (request == 0) {
+                serve(exchange, data, DROP_AFTER_BYTES, true);
+            } else if (request == 1) {
+                // Claims to resume, but sends the file from the start
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Content-Range", "bytes 0-" + (data.length - 1) + "/" + data.length);
+                exchange.respond(206, headers, data);
+            } else {
+                serve(exchange, data, 0, true);
+            }
+        });
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertEquals(3, requests.get());
+        assertNull(ranges.get(ranges.size() - 1));
+    }
+
+    @Test
+    public void changedFileStartsOver() throws Exception {
+        byte[] changed = random(FILE_BYTES, 2);
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> {
+            if (requests.getAndIncrement() == 0) {
+                serve(exchange, data, DROP_AFTER_BYTES, true);
+            } else {
+                // A new ETag, the If-Range condition fails and the whole new file is sent
+                assertEquals(ETAG, exchange.getHeader("If-Range"));
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("ETag", "\"v2\"");
+                exchange.respond(200, headers, changed);
+            }
+        });
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), changed);
+    }
+
+    @Test
+    public void chunkedResponseWithoutLength() throws Exception {
+        server.setHandler(exchange -> {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Transfer-Encoding", "chunked");
+            exchange.writeHead(200, headers);
+            for (int offset = 0; offset < data.length; offset += 100000) {
+                int length = Math.min(100000, data.length - offset);
+                exchange.out.write((Integer.toHexString(length) + "\r\n").getBytes("US-ASCII"));
+                exchange.out.write(data, offset, length);
+                exchange.out.write("\r\n".getBytes("US-ASCII"));
+            }
+            exchange.out.write("0\r\n\r\n".getBytes("US-ASCII"));
+            exchange.out.flush();
+        });
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+    }
+
+    /**
+     * Writes the given ranges of the file into the part file, as the peer download does.
+     */
+    private void preparePeerChunks(File dir, int[][] chunks) throws IOException {
+        DownloadJournal journal = DownloadJournal.load(dir);
+        journal.start(server.getUrl("/update.apk"), "update.apk", ETAG, null, data.length, null);
+        try (RandomAccessFile raf = new RandomAccessFile(journal.getPartFile(), "rw")) {
+            for (int[] chunk : chunks) {
+                raf.seek(chunk[0]);
+                raf.write(data, chunk[0], chunk[1] - chunk[0]);
+                journal.commit(chunk[0], chunk[1]);
+            }
+        }
+    }
+
+    @Test
+    public void onlyGapsBetweenPeerChunksAreFetched() throws Exception {
+        preparePeerChunks(folder.getRoot(), new int[][]{{1048576, 2097152}, {2621440, 3145728}});
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertEquals(Arrays.asList("bytes=0-1048575", "bytes=2097152-2621439", "bytes=3145728-"), ranges);
+    }
+
+    @Test
+    public void droppedGapIsResumedWithinTheGap() throws Exception {
+        preparePeerChunks(folder.getRoot(), new int[][]{{2097152, data.length}});
+        AtomicInteger requests = new AtomicInteger();
+        server.setHandler(exchange -> serve(exchange, data,
+                requests.getAndIncrement() == 0 ? DROP_AFTER_BYTES : 0, true));
+
+        assertDownloaded(download(createDownloader(), "/update.apk", folder.getRoot()), data);
+        assertEquals(2, ranges.size());
+        assertEquals("bytes=0-2097151", ranges.get(0));
+        assertTrue(ranges.get(1), ranges.get(1).matches("bytes=\\d{7,}-2097151"));
+    }
+
+    @Test
+    public void contentRangeMustMatchTheRequest() {
+        assertTrue(FileDownloader.isValidContentRange("bytes 100-199/1000", 100, 100, 200, 1000));
+        assertTrue(FileDownloader.isValidContentRange("bytes 100-999/*", -1, 100, 1000, 1000));
+        assertTrue(FileDownloader.isValidContentRange("bytes 100-999/1000", -1, 100, 1000, -1));
+        assertFalse(FileDownloader.isValidContentRange(null, 100, 100, 200, 1000));
+        assertFalse(FileDownloader.isValidContentRange("bytes 0-199/1000", 200, 100, 200, 1000));
+        // The server ignored the end of the range
+        assertFalse(FileDownloader.isValidContentRange("bytes 100-999/1000", 900, 100, 200, 1000));
+        assertFalse(FileDownloader.isValidContentRange("bytes 100-199/2000", 100, 100, 200, 1000));
+        assertFalse(FileDownloader.isValidContentRange("bytes 100-199/1000", 150, 100, 200, 1000));
+    }
+
+    @Test
+    public void lengthsBeyond2GB() {
+        assertEquals(3000000000L, FileDownloader.parseContentLength("3000000000"));
+        assertEquals(-1, FileDownloader.parseContentLength(null));
+        assertEquals(-1, FileDownloader.parseContentLength("-5"));
+        assertEquals(-1, FileDownloader.parseContentLength("many"));
+        assertTrue(FileDownloader.isValidContentRange("bytes 2999000000-2999999999/3000000000", 1000000,
+                2999000000L, 3000000000L, 3000000000L));
+        // The whole file instead of the range
+        assertFalse(FileDownloader.isValidContentRange("bytes 0-2999999999/3000000000", 3000000000L,
+                2999000000L, 3000000000L, 3000000000L));
+    }
+
+    /**
+     * Resumes a 3 GB file near its end. The part file is sparse, so this does not write gigabytes.
+     */
+    @Test
+    public void resumesBeyond2GB() throws Exception {
+        long length = 3000000000L;
+        long offset = length - data.length;
+        server.setHandler(exchange -> {
+            ranges.add(exchange.getHeader("Range"));
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("ETag", ETAG);
+            headers.put("Content-Range", "bytes " + offset + "-" + (length - 1) + "/" + length);
+            exchange.respond(206, headers, data);
+        });
+
+        File dir = folder.getRoot();
+        DownloadJournal journal = DownloadJournal.load(dir);
+        journal.start(server.getUrl("/update.apk"), "update.apk", ETAG, null, length, null);
+        try (RandomAccessFile raf = new RandomAccessFile(journal.getPartFile(), "rw")) {
+            raf.setLength(offset);
+        }
+        journal.commit(0, offset);
+
+        File file = download(createDownloader(), "/update.apk", dir);
+        assertEquals(Collections.singletonList("bytes=" + offset + "-"), ranges);
+        assertEquals(length, file.length());
+        byte[] tail = new byte[data.length];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            raf.readFully(tail);
+        }
+        assertArrayEquals(data, tail);
+    }
+
+    /**
+     * Pauses the download on another thread while the server handles the request and expects it to end
+     * within a second, long before the server answers.
+     */
+    private void assertPausedQuickly(FileDownloader downloader, CountDownLatch requested) throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<File> task = executor.submit(() -> download(downloader, "/update.apk", folder.getRoot()));
+            assertTrue(requested.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            downloader.pause();
+            try {
+                task.get(1, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof DownloadFailedException);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(downloader.isPaused());
+    }
+
+    @Test
+    public void pauseBeforeTheFirstByte() throws Exception {
+        CountDownLatch requested = new CountDownLatch(1);
+        server.setHandler(exchange -> {
+            requested.countDown();
+            // The response headers are late, the downloader waits in getResponseCode()
+            Thread.sleep(5000);
+            serve(exchange, data, 0, true);
+        });
+
+        FileDownloader downloader = new FileDownloader();
+        downloader.setTimeouts(2000, 10000, 10);
+        assertPausedQuickly(downloader, requested);
+        assertEquals(1, server.getRequests());
+        assertEquals(0, DownloadJournal.load(folder.getRoot()).getBytesCommitted());
+    }
+
+    @Test
+    public void pauseBeforeTheConnectionIsOpened() throws Exception {
+        FileDownloader downloader = createDownloader();
+        downloader.pause();
+        try {
+            download(downloader, "/update.apk", folder.getRoot());
+            fail();
+        } catch (DownloadFailedException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("interrupted"));
+        }
+        assertEquals(0, server.getRequests());
+        assertFalse(new File(folder.getRoot(), "update.apk").exists());
+    }
+
+    @Test
+    public void pauseDuringTheBackoff() throws Exception {
+        CountDownLatch requested = new CountDownLatch(1);
+        server.setHandler(exchange -> {
+            Map<String, String> headers = new LinkedHashMap<>();
+            headers.put("Retry-After", "30");
+            exchange.respond(503, headers, new byte[0]);
+            requested.countDown();
+        });
+
+        // There is no connection to close while waiting for the next attempt
+        assertPausedQuickly(createDownloader(), requested);
+        assertEquals(1, server.getRequests());
+    }
+
+    /**
+     * A fleet of devices against one server: a third of the clients loses its first connection, another
+     * third is told to come back later. Every client must end up with the complete file.
+     */
+    @Test
+    public void concurrentClients() throws Exception {
+        int clients = 100;
+        byte[] file = random(256 * 1024, 3);
+        Map<String, AtomicInteger> requests = new ConcurrentHashMap<>();
+        server.setHandler(exchange -> {
+            int client = Integer.parseInt(exchange.path.split("/")[1]);
+            int request = requests.computeIfAbsent(exchange.path, path -> new AtomicInteger()).getAndIncrement();
+            if (request == 0 && client % 3 == 0) {
+                serve(exchange, file, 64 * 1024, true);
+            } else if (request == 0 && client % 3 == 1) {
+                Map<String, String> headers = new LinkedHashMap<>();
+                headers.put("Retry-After", "0");
+                exchange.respond(503, headers, new byte[0]);
+            } else {
+                serve(exchange, file, 0, true);
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<Long>> tasks = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                String path = "/" + i + "/update.apk";
+                File dir = folder.newFolder(String.valueOf(i));
+                tasks.add(executor.submit(() -> {
+                    long start = System.nanoTime();
+                    assertDownloaded(download(createDownloader(), path, dir), file);
+                    return (System.nanoTime() - start) / 1000000;
+                }));
+            }
+
+            long[] millis = new long[clients];
+            for (int i = 0; i < clients; i++) {
+                millis[i] = tasks.get(i).get();
+            }
+            Arrays.sort(millis);
+            System.out.println("FileDownloaderFaultTest: " + clients + " clients, " + server.getRequests()
+                    + " requests, p50 " + millis[clients / 2] + " ms, p99 " + millis[clients * 99 / 100] + " ms");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(clients + (clients + 2) / 3 + (clients + 1) / 3, server.getRequests());
+    }
+
+}
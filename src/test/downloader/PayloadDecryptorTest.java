@@ -0,0 +1,176 @@
+package de.kolbasa.apkupdater.downloader;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadDecryptorTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String encodeKey(byte[] key) {
+        return Base64.getEncoder().encodeToString(key);
+    }
+
+    /**
+     * Same as the encrypt.js script in doc/EncryptedPayload.md
+     */
+    private static byte[] encrypt(byte[] key, byte[] data) throws Exception {
+        ByteBuffer header = ByteBuffer.allocate(17);
+        header.put(new byte[]{'A', 'P', 'K', 'E', 1}).putInt(CHUNK_SIZE).put(random(8, 1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.array());
+
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        int index = 0;
+        int position = 0;
+        do {
+            int length = Math.min(CHUNK_SIZE, data.length - position);
+            byte last = (byte) (position + length >= data.length ? 1 : 0);
+
+            byte[] nonce = ByteBuffer.allocate(12).put(header.array(), 9, 8).putInt(index++).array();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, nonce));
+            cipher.updateAAD(header.array());
+            cipher.updateAAD(new byte[]{last});
+            byte[] encrypted = cipher.doFinal(data, position, length);
+            position += length;
+
+            out.write(last);
+            out.write(ByteBuffer.allocate(4).putInt(encrypted.length).array());
+            out.write(encrypted);
+        } while (position < data.length);
+
+        return out.toByteArray();
+    }
+
+    private static byte[] decrypt(PayloadDecryptor decryptor, byte[] payload, int step) throws Exception {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(plain);
+        for (int offset = 0; offset < payload.length; offset += step) {
+            decryptor.update(payload, offset, Math.min(step, payload.length - offset), out);
+        }
+        return plain.toByteArray();
+    }
+
+    @Test
+    public void decryptsInAnyReadSize() throws Exception {
+        byte[] key = random(32, 2);
+        byte[] data = random(3500, 3);
+        byte[] payload = encrypt(key, data);
+
+        for (int step : new int[]{1, 7, 1021, payload.length}) {
+            PayloadDecryptor decryptor = new PayloadDecryptor(encodeKey(key));
+            assertArrayEquals(data, decrypt(decryptor, payload, step));
+            decryptor.finish();
+            assertEquals(payload.length, decryptor.getInputCommitted());
+            assertEquals(data.length, decryptor.getOutputCommitted());
+        }
+    }
+
+    @Test
+    public void continuesFromSavedState() throws Exception {
+        byte[] key = random(16, 4);
+        byte[] data = random(2500, 5);
+        byte[] payload = encrypt(key, data);
+
+        PayloadDecryptor decryptor = new PayloadDecryptor(encodeKey(key));
+        // Stops in the middle of the second frame
+        byte[] first = decrypt(decryptor, Arrays.copyOf(payload, 1500), 100);
+        assertFalse(decryptor.isFinished());
+        JSONObject state = new JSONObject(decryptor.saveState().toString());
+
+        PayloadDecryptor restored = PayloadDecryptor.restore(encodeKey(key), state);
+        int resumeAt = (int) restored.getInputCommitted();
+        byte[] rest = decrypt(restored, Arrays.copyOfRange(payload, resumeAt, payload.length), 100);
+        restored.finish();
+
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        all.write(first, 0, (int) restored.getOutputCommitted() - rest.length);
+        all.write(rest);
+        assertArrayEquals(data, all.toByteArray());
+    }
+
+    @Test
+    public void rejectsModifiedPayload() throws Exception {
+        byte[] key = random(32, 6);
+        byte[] payload = encrypt(key, random(1500, 7));
+        payload[payload.length - 20] ^= 1;
+        try {
+            decrypt(new PayloadDecryptor(encodeKey(key)), payload, payload.length);
+            fail();
+        } catch (GeneralSecurityException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPayload() throws Exception {
+        byte[] key = random(32, 8);
+        byte[] data = random(2500, 9);
+        byte[] payload = encrypt(key, data);
+        // Drops the final frame
+        int length = 17 + 2 * (5 + CHUNK_SIZE + 16);
+        PayloadDecryptor decryptor = new PayloadDecryptor(encodeKey(key));
+        decrypt(decryptor, Arrays.copyOf(payload, length), 512);
+        try {
+            decryptor.finish();
+            fail();
+        } catch (GeneralSecurityException e) {
+            assertTrue(e.getMessage().contains("incomplete"));
+        }
+    }
+
+    @Test
+    public void acceptsAesKeyLengths() {
+        for (int length : new int[]{16, 24, 32}) {
+            PayloadDecryptor.checkKey(encodeKey(new byte[length]));
+        }
+    }
+
+    @Test
+    public void rejectsOtherKeyLengths() {
+        for (int length : new int[]{0, 15, 20, 33, 64}) {
+            try {
+                PayloadDecryptor.checkKey(encodeKey(new byte[length]));
+                fail("Accepted a key of " + length + " bytes");
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(length + " bytes"));
+            }
+        }
+    }
+
+    @Test
+    public void rejectsInvalidBase64() {
+        try {
+            PayloadDecryptor.checkKey("not base64!");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Base64"));
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+package de.kolbasa.apkupdater.downloader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PeerServerTest {
+
+    private static InputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void readsLines() throws Exception {
+        InputStream in = stream("GET /update/abc HTTP/1.1\r\nRange: bytes=0-\n\r\n");
+        assertEquals("GET /update/abc HTTP/1.1", PeerServer.readLine(in));
+        assertEquals("Range: bytes=0-", PeerServer.readLine(in));
+        assertEquals("", PeerServer.readLine(in));
+        assertNull(PeerServer.readLine(in));
+    }
+
+    @Test
+    public void acceptsLinesUpToTheLimit() throws Exception {
+        char[] line = new char[PeerServer.MAX_LINE_BYTES];
+        Arrays.fill(line, 'a');
+        assertEquals(PeerServer.MAX_LINE_BYTES, PeerServer.readLine(stream(new String(line) + "\r\n")).length());
+    }
+
+    @Test
+    public void rejectsLongerLines() {
+        char[] line = new char[PeerServer.MAX_LINE_BYTES + 1];
+        Arrays.fill(line, 'a');
+        try {
+            PeerServer.readLine(stream(new String(line)));
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package de.kolbasa.apkupdater.downloader;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressTest {
+
+    @Test
+    public void percentageBeyond2GB() throws Exception {
+        Progress progress = new Progress(5000000000L);
+        progress.setBytesWritten(2500000000L);
+        JSONObject json = progress.toJSON();
+        assertEquals(50.0, json.getDouble("progress"), 0);
+        assertEquals(5000000000L, json.getLong("bytes"));
+        assertEquals(2500000000L, json.getLong("bytesWritten"));
+
+        progress.setBytesWritten(4999999999L);
+        assertTrue(progress.getPercent() > 99.9 && progress.getPercent() <= 100);
+    }
+
+    @Test
+    public void unknownTotal() throws Exception {
+        Progress progress = new Progress(-1);
+        progress.setBytesWritten(3000000000L);
+        assertTrue(progress.isIndeterminate());
+        assertEquals(-1, progress.toJSON().getDouble("progress"), 0);
+        assertEquals(3000000000L, progress.toJSON().getLong("bytesWritten"));
+
+        // The end of the stream
+        progress.setBytes(3000000000L);
+        assertEquals(100.0, progress.toJSON().getDouble("progress"), 0);
+    }
+
+}
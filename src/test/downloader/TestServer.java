@@ -0,0 +1,177 @@
+package de.kolbasa.apkupdater.downloader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small HTTP/1.1 server with keep-alive for tests. Every request is passed to a handler,
+ * which can answer normally or misbehave on the socket level.
+ */
+class TestServer implements Closeable {
+
+    interface Handler {
+        void handle(Exchange exchange) throws Exception;
+    }
+
+    static class Exchange {
+
+        final String method;
+        final String path;
+        final Map<String, String> headers;
+        final Socket socket;
+        final OutputStream out;
+        /**
+         * Number of the request on its connection, starting at 0
+         */
+        final int index;
+
+        private boolean closed;
+
+        private Exchange(String method, String path, Map<String, String> headers, Socket socket, int index)
+                throws IOException {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            this.index = index;
+        }
+
+        String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        void writeHead(int code, Map<String, String> headers) throws IOException {
+            StringBuilder head = new StringBuilder("HTTP/1.1 ").append(code).append(" Status\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+            head.append("\r\n");
+            out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+
+        void respond(int code, Map<String, String> headers, byte[] body) throws IOException {
+            Map<String, String> all = new LinkedHashMap<>(headers);
+            all.put("Content-Length", String.valueOf(body.length));
+            writeHead(code, all);
+            if (!"HEAD".equals(method)) {
+                out.write(body);
+            }
+            out.flush();
+        }
+
+        void respond(int code) throws IOException {
+            respond(code, new HashMap<>(), new byte[0]);
+        }
+
+        /**
+         * Drops the connection without a (complete) response.
+         */
+        void close() throws IOException {
+            closed = true;
+            socket.close();
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile Handler handler;
+
+    TestServer(Handler handler) throws IOException {
+        this.handler = handler;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    String getUrl(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.incrementAndGet();
+                executor.execute(() -> serve(socket));
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b == -1 && line.size() == 0 ? null : line.toString("US-ASCII");
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            for (int index = 0; ; index++) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+                String[] parts = requestLine.split(" ");
+                Exchange exchange = new Exchange(parts[0], parts[1], headers, s, index);
+                requests.incrementAndGet();
+                handler.handle(exchange);
+                if (exchange.closed) {
+                    return;
+                }
+            }
+        } catch (SocketException | InterruptedException e) {
+            // The client went away or the server was closed
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+}
@@ -0,0 +1,193 @@
+package de.kolbasa.apkupdater.tools;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import de.kolbasa.apkupdater.exceptions.SignatureVerificationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ApkSignatureTest {
+
+    private static final String KEY = "MIGHAgEAMBMGByqGSM49AgEGCCqGSM49AwEHBG0wawIBAQQgYuUMU4KgAbpl6Jwm2vPwND5kXbh3vJUtrM"
+            + "nuGG5EauqhRANCAARlvrOOXcQafPysESBwnkXNWX6Nny3MBO8I9baHXq5L55M9zQGdDLWrlhsZTnUqJ1oL/nVsrWOk3VEitlls+olF";
+    private static final String CERTIFICATE = "MIIBijCCATGgAwIBAgIUXzVn6EOSlDa63gX7KkBItoHrGfgwCgYIKoZIzj0EAwIwGjEYMB"
+            + "YGA1UEAwwPQXBrVXBkYXRlciBUZXN0MCAXDTI2MTAxODIyNTg0M1oYDzIxMjYwOTI0MjI1ODQzWjAaMRgwFgYDVQQDDA9BcGtVcGRh"
+            + "dGVyIFRlc3QwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAARlvrOOXcQafPysESBwnkXNWX6Nny3MBO8I9baHXq5L55M9zQGdDLWrlh"
+            + "sZTnUqJ1oL/nVsrWOk3VEitlls+olFo1MwUTAdBgNVHQ4EFgQUR4xw2AHEIV4a95vWAUhqWmgHsQAwHwYDVR0jBBgwFoAUR4xw2AHE"
+            + "IV4a95vWAUhqWmgHsQAwDwYDVR0TAQH/BAUwAwEB/zAKBggqhkjOPQQDAgNHADBEAiBW1xlDmvi3sJ7Xxroxj9fr/dO6+zGnVieB4r"
+            + "DRDLm3RwIgNKLcGxRykWSIg9hGia5lAo++ld2RpV/u8HdSHp/+OdY=";
+    private static final String DIGEST = "13b334a8513600e93cc816ae91805009d26820c6b1ece88cc4ac31c9230f1a52";
+    private static final String OTHER_DIGEST = "d4d20082f2922b04765d2a27155adf81767a09e182dfdfe3d06cf6cc781bc1e0";
+
+    private static final int SHA256_WITH_ECDSA = 0x0201;
+    private static final int V2_BLOCK_ID = 0x7109871a;
+
+    private static final String PACKAGE = "com.example.app";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        ApkSignature.pin(Collections.emptyList());
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] int32(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    private static byte[] int64(long value) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array();
+    }
+
+    private static byte[] lengthPrefixed(byte[]... parts) {
+        byte[] value = concat(parts);
+        return concat(int32(value.length), value);
+    }
+
+    private static byte[] createZip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zip.write(new byte[1000]);
+            zip.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Inserts an APK Signature Scheme v2 block in front of the central directory. The content digests
+     * are zeros, {@link ApkSignature} leaves them to the installer.
+     */
+    private static byte[] sign(byte[] zip, boolean tamper) throws Exception {
+        byte[] certificate = Base64.getDecoder().decode(CERTIFICATE);
+        PrivateKey key = KeyFactory.getInstance("EC")
+                .generatePrivate(new PKCS8EncodedKeySpec(Base64.getDecoder().decode(KEY)));
+        X509Certificate x509 = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(certificate));
+
+        byte[] digests = lengthPrefixed(lengthPrefixed(int32(SHA256_WITH_ECDSA), lengthPrefixed(new byte[32])));
+        byte[] signedData = concat(digests, lengthPrefixed(lengthPrefixed(certificate)), lengthPrefixed());
+        Signature signer = Signature.getInstance("SHA256withECDSA");
+        signer.initSign(key);
+        signer.update(signedData);
+        byte[] signature = signer.sign();
+        if (tamper) {
+            signedData[signedData.length - 5] ^= 1;
+        }
+
+        byte[] signerBlock = lengthPrefixed(lengthPrefixed(signedData),
+                lengthPrefixed(lengthPrefixed(int32(SHA256_WITH_ECDSA), lengthPrefixed(signature))),
+                lengthPrefixed(x509.getPublicKey().getEncoded()));
+        byte[] v2 = lengthPrefixed(signerBlock);
+        byte[] pair = concat(int64(v2.length + 4), int32(V2_BLOCK_ID), v2);
+        long size = pair.length + 8 + 16;
+        byte[] block = concat(int64(size), pair, int64(size), "APK Sig Block 42".getBytes("US-ASCII"));
+
+        int eocd = zip.length - 22;
+        int centralDirectory = ByteBuffer.wrap(zip).order(ByteOrder.LITTLE_ENDIAN).getInt(eocd + 16);
+        byte[] apk = concat(Arrays.copyOfRange(zip, 0, centralDirectory), block,
+                Arrays.copyOfRange(zip, centralDirectory, zip.length));
+        ByteBuffer.wrap(apk).order(ByteOrder.LITTLE_ENDIAN).putInt(eocd + block.length + 16,
+                centralDirectory + block.length);
+        return apk;
+    }
+
+    private File write(String name, byte[] bytes) throws Exception {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    @Test
+    public void readsTheSignerOfAV2Block() throws Exception {
+        File apk = write("update.apk", sign(createZip(), false));
+        assertEquals(Collections.singletonList(DIGEST), ApkSignature.getCertificateDigests(apk));
+    }
+
+    @Test
+    public void rejectsAModifiedSigner() throws Exception {
+        File apk = write("update.apk", sign(createZip(), true));
+        try {
+            ApkSignature.getCertificateDigests(apk);
+            fail();
+        } catch (SignatureVerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Invalid signature"));
+        }
+    }
+
+    @Test
+    public void v1OnlyApkHasNoDigests() throws Exception {
+        // The caller falls back to the certificates of the JAR signature
+        File apk = write("update.apk", createZip());
+        assertTrue(ApkSignature.getCertificateDigests(apk).isEmpty());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        File file = write("update.apk", Base64.getDecoder().decode(CERTIFICATE));
+        try {
+            ApkSignature.getCertificateDigests(file);
+            fail();
+        } catch (SignatureVerificationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Not a zip file"));
+        }
+    }
+
+    @Test
+    public void pinsOnlyApplyToTheOwnPackage() {
+        List<String> installed = Collections.singletonList(OTHER_DIGEST);
+        assertEquals(installed, ApkSignature.getExpectedDigests(PACKAGE, PACKAGE, installed));
+
+        ApkSignature.pin(Collections.singletonList(DIGEST.toUpperCase()));
+        assertEquals(Collections.singletonList(DIGEST),
+                Arrays.asList(ApkSignature.getExpectedDigests(PACKAGE, PACKAGE, installed).toArray()));
+        assertEquals(installed, ApkSignature.getExpectedDigests("com.example.other", PACKAGE, installed));
+        assertTrue(ApkSignature.getExpectedDigests("com.example.other", PACKAGE, Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void checkAcceptsAnyMatchingSigner() throws Exception {
+        ApkSignature.check(Arrays.asList(OTHER_DIGEST, DIGEST), Collections.singletonList(DIGEST));
+        try {
+            ApkSignature.check(Collections.singletonList(OTHER_DIGEST), Collections.singletonList(DIGEST));
+            fail();
+        } catch (SignatureVerificationException e) {
+            assertEquals(OTHER_DIGEST, e.getDetails().getJSONArray("certificates").getString(0));
+            assertEquals(DIGEST, e.getDetails().getJSONArray("expected").getString(0));
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package de.kolbasa.apkupdater.tools;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ArchiveFormatTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File write(String name, byte[] header) throws Exception {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), header);
+        return file;
+    }
+
+    private static byte[] tarHeader() {
+        byte[] header = new byte[ArchiveFormat.HEADER_BYTES];
+        System.arraycopy("ustar".getBytes(), 0, header, 257, 5);
+        return header;
+    }
+
+    @Test
+    public void detectsByMagicBytes() throws Exception {
+        // The extension is deliberately wrong, only the content counts
+        assertEquals(ArchiveFormat.ZIP, ArchiveFormat.detect(write("a.bin", new byte[]{0x50, 0x4b, 0x03, 0x04, 0})));
+        assertEquals(ArchiveFormat.ZSTD, ArchiveFormat.detect(write("b.zip",
+                new byte[]{0x28, (byte) 0xb5, 0x2f, (byte) 0xfd, 0})));
+        assertEquals(ArchiveFormat.XZ, ArchiveFormat.detect(write("c.zip",
+                new byte[]{(byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00, 0})));
+        assertEquals(ArchiveFormat.TAR, ArchiveFormat.detect(write("d.zip", tarHeader())));
+    }
+
+    @Test
+    public void unknownOrShortFiles() throws Exception {
+        assertNull(ArchiveFormat.detect(write("update.apk", new byte[]{0x7f, 'E', 'L', 'F'})));
+        assertNull(ArchiveFormat.detect(write("empty.zip", new byte[0])));
+        // The magic of a zip file, but cut off
+        assertNull(ArchiveFormat.detect(write("short.zip", new byte[]{0x50, 0x4b, 0x03})));
+        byte[] tar = tarHeader();
+        assertNull(ArchiveFormat.detect(write("short.tar", Arrays.copyOf(tar, 260))));
+    }
+
+    @Test
+    public void guessesFromTheFileName() {
+        assertEquals(ArchiveFormat.ZIP, ArchiveFormat.fromFileName(new File("update.zip")));
+        assertEquals(ArchiveFormat.ZSTD, ArchiveFormat.fromFileName(new File("update.tzst")));
+        assertEquals(ArchiveFormat.XZ, ArchiveFormat.fromFileName(new File("update.apk.xz")));
+        assertEquals(ArchiveFormat.TAR, ArchiveFormat.fromFileName(new File("update.tar")));
+        assertNull(ArchiveFormat.fromFileName(new File("update.apk")));
+    }
+
+}
@@ -0,0 +1,48 @@
+package de.kolbasa.apkupdater.tools;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HistogramTest {
+
+    @Test
+    public void countsValuesUpToTheBound() throws Exception {
+        Histogram histogram = new Histogram(10, 100);
+        for (long value : new long[]{0, 10, 11, 100, 101, 5000}) {
+            histogram.record(value);
+        }
+        JSONObject json = histogram.toJSON();
+        assertEquals("[2,2,2]", json.getJSONArray("counts").toString());
+        assertEquals("[10,100]", json.getJSONArray("bounds").toString());
+        assertEquals(6, json.getLong("count"));
+        assertEquals(5222, json.getLong("sum"));
+        assertEquals(870, json.getLong("mean"));
+    }
+
+    @Test
+    public void emptyHistogram() throws Exception {
+        JSONObject json = new Histogram(10).toJSON();
+        assertEquals("[0,0]", json.getJSONArray("counts").toString());
+        assertEquals(0, json.getLong("mean"));
+    }
+
+    @Test
+    public void restoresOnlyWithTheSameBounds() throws Exception {
+        Histogram saved = new Histogram(10, 100);
+        saved.record(5);
+        saved.record(50);
+
+        Histogram histogram = new Histogram(10, 100);
+        histogram.record(500);
+        histogram.restore(saved.toJSON());
+        assertEquals("[1,1,1]", histogram.toJSON().getJSONArray("counts").toString());
+        assertEquals(555, histogram.toJSON().getLong("sum"));
+
+        Histogram other = new Histogram(1, 2, 3);
+        other.restore(saved.toJSON());
+        assertEquals(0, other.toJSON().getLong("count"));
+    }
+
+}
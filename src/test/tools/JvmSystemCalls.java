@@ -0,0 +1,34 @@
+package de.kolbasa.apkupdater.tools;
+
+import android.system.ErrnoException;
+import android.system.OsConstants;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Replaces the system calls of {@link FileTools} on the JVM: links are created with java.nio and
+ * preallocation is skipped, as on file systems that do not support it.
+ */
+public class JvmSystemCalls implements FileTools.SystemCalls {
+
+    public static void install() {
+        FileTools.setSystemCalls(new JvmSystemCalls());
+    }
+
+    @Override
+    public void link(String oldPath, String newPath) throws ErrnoException {
+        try {
+            Files.createLink(Paths.get(newPath), Paths.get(oldPath));
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new ErrnoException("link", OsConstants.EPERM);
+        }
+    }
+
+    @Override
+    public void fallocate(FileDescriptor fd, long offset, long length) {
+    }
+
+}
@@ -0,0 +1,71 @@
+package de.kolbasa.apkupdater.tools;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamExtractorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        JvmSystemCalls.install();
+    }
+
+    private static void addFile(TarArchiveOutputStream tar, String name, byte[] content) throws Exception {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(content.length);
+        tar.putArchiveEntry(entry);
+        tar.write(content);
+        tar.closeArchiveEntry();
+    }
+
+    private static void addLink(TarArchiveOutputStream tar, String name, byte type, String target) throws Exception {
+        TarArchiveEntry entry = new TarArchiveEntry(name, type);
+        entry.setLinkName(target);
+        tar.putArchiveEntry(entry);
+        tar.closeArchiveEntry();
+    }
+
+    @Test
+    public void skipsLinksAndDevices() throws Exception {
+        byte[] index = "<html></html>".getBytes("UTF-8");
+        File archive = folder.newFile("update.tar");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new FileOutputStream(archive))) {
+            addFile(tar, "www/index.html", index);
+            addLink(tar, "www/passwd", TarConstants.LF_SYMLINK, "/etc/passwd");
+            addLink(tar, "www/copy.html", TarConstants.LF_LINK, "www/index.html");
+            addLink(tar, "www/null", TarConstants.LF_CHR, "");
+            addLink(tar, "www/pipe", TarConstants.LF_FIFO, "");
+        }
+
+        File destination = folder.newFolder("out");
+        AtomicLong bytesWritten = new AtomicLong();
+        ArchiveFormat.TAR.createExtractor(null).extract(archive, destination, new AtomicLong(), bytesWritten);
+
+        assertArrayEquals(index, Files.readAllBytes(new File(destination, "www/index.html").toPath()));
+        assertEquals(index.length, bytesWritten.get());
+        for (String name : Arrays.asList("passwd", "copy.html", "null", "pipe")) {
+            assertFalse(name, new File(destination, "www/" + name).exists());
+        }
+        assertTrue(Arrays.asList(new File(destination, "www").list()).contains("index.html"));
+    }
+
+}
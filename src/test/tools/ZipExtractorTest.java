@@ -0,0 +1,140 @@
+package de.kolbasa.apkupdater.tools;
+
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ZipExtractorTest {
+
+    private static final int STORED = 0;
+    private static final int DEFLATED = 8;
+    private static final int ZIP64_VERSION = 45;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long UNKNOWN_32 = 0xffffffffL;
+    private static final int UNKNOWN_16 = 0xffff;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setUpClass() {
+        JvmSystemCalls.install();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a zip archive in the Zip64 format, as it is used for archives and entries over 4 GB: the sizes and
+     * offsets of the regular headers are 0xffffffff and the real values are in the Zip64 extra fields and the
+     * Zip64 end of central directory. The entries themselves stay small.
+     */
+    private static class Zip64Writer {
+
+        private final ByteBuffer archive = ByteBuffer.allocate(1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer centralDirectory = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private int entries;
+
+        void add(String name, byte[] data, int method) {
+            byte[] fileName = name.getBytes(StandardCharsets.UTF_8);
+            byte[] content = method == DEFLATED ? deflate(data) : data;
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            long offset = archive.position();
+
+            archive.putInt(0x04034b50).putShort((short) ZIP64_VERSION).putShort((short) 0).putShort((short) method)
+                    .putInt(0).putInt((int) crc.getValue()).putInt((int) UNKNOWN_32).putInt((int) UNKNOWN_32)
+                    .putShort((short) fileName.length).putShort((short) 20).put(fileName)
+                    .putShort((short) ZIP64_EXTRA_ID).putShort((short) 16).putLong(data.length).putLong(content.length)
+                    .put(content);
+
+            centralDirectory.putInt(0x02014b50).putShort((short) ZIP64_VERSION).putShort((short) ZIP64_VERSION)
+                    .putShort((short) 0).putShort((short) method).putInt(0).putInt((int) crc.getValue())
+                    .putInt((int) UNKNOWN_32).putInt((int) UNKNOWN_32).putShort((short) fileName.length)
+                    .putShort((short) 28).putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                    .putInt((int) UNKNOWN_32).put(fileName)
+                    .putShort((short) ZIP64_EXTRA_ID).putShort((short) 24).putLong(data.length).putLong(content.length)
+                    .putLong(offset);
+            entries++;
+        }
+
+        byte[] finish() {
+            long centralDirectoryOffset = archive.position();
+            long centralDirectorySize = centralDirectory.position();
+            archive.put(centralDirectory.array(), 0, centralDirectory.position());
+
+            long zip64EndOffset = archive.position();
+            archive.putInt(0x06064b50).putLong(44).putShort((short) ZIP64_VERSION).putShort((short) ZIP64_VERSION)
+                    .putInt(0).putInt(0).putLong(entries).putLong(entries)
+                    .putLong(centralDirectorySize).putLong(centralDirectoryOffset);
+            archive.putInt(0x07064b50).putInt(0).putLong(zip64EndOffset).putInt(1);
+            archive.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) UNKNOWN_16).putShort((short) UNKNOWN_16)
+                    .putInt((int) UNKNOWN_32).putInt((int) UNKNOWN_32).putShort((short) 0);
+
+            byte[] bytes = new byte[archive.position()];
+            System.arraycopy(archive.array(), 0, bytes, 0, bytes.length);
+            return bytes;
+        }
+    }
+
+    @Test
+    public void extractsZip64Archives() throws Exception {
+        byte[] apk = random(300 * 1024, 1);
+        byte[] index = "<html><body>update</body></html>".getBytes(StandardCharsets.UTF_8);
+        byte[] script = new byte[100 * 1024];
+
+        Zip64Writer writer = new Zip64Writer();
+        writer.add("update.apk", apk, STORED);
+        writer.add("www/index.html", index, DEFLATED);
+        writer.add("www/app.js", script, DEFLATED);
+
+        File dir = folder.newFolder("update");
+        File archive = new File(dir, "update.zip");
+        Files.write(archive.toPath(), writer.finish());
+        assertEquals(ArchiveFormat.ZIP, ArchiveFormat.detect(archive));
+
+        AtomicLong size = new AtomicLong(-1);
+        AtomicLong bytesWritten = new AtomicLong();
+        ArchiveFormat.ZIP.createExtractor(null).extract(archive, dir, size, bytesWritten);
+
+        assertArrayEquals(apk, Files.readAllBytes(new File(dir, "update.apk").toPath()));
+        assertArrayEquals(index, Files.readAllBytes(new File(dir, "www/index.html").toPath()));
+        assertArrayEquals(script, Files.readAllBytes(new File(dir, "www/app.js").toPath()));
+        long total = apk.length + index.length + script.length;
+        assertEquals(total, size.get());
+        assertEquals(total, bytesWritten.get());
+    }
+
+}
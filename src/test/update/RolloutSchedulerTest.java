@@ -0,0 +1,94 @@
+package de.kolbasa.apkupdater.update;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RolloutSchedulerTest {
+
+    private static final String PACKAGE = "com.example.app";
+    private static final int DEVICES = 100000;
+
+    private static String androidId(int device) {
+        return String.format("%016x", device * 0x9e3779b97f4a7c15L);
+    }
+
+    @Test
+    public void bucketIsStable() {
+        double bucket = RolloutScheduler.getBucket("0123456789abcdef", PACKAGE, "1.0.1");
+        assertEquals(bucket, RolloutScheduler.getBucket("0123456789abcdef", PACKAGE, "1.0.1"), 0);
+        assertTrue(bucket >= 0 && bucket < 1);
+    }
+
+    @Test
+    public void bucketDependsOnDeviceAppAndRollout() {
+        double bucket = RolloutScheduler.getBucket("0123456789abcdef", PACKAGE, "1.0.1");
+        assertNotEquals(bucket, RolloutScheduler.getBucket("0123456789abcdee", PACKAGE, "1.0.1"), 0);
+        assertNotEquals(bucket, RolloutScheduler.getBucket("0123456789abcdef", "com.example.other", "1.0.1"), 0);
+        assertNotEquals(bucket, RolloutScheduler.getBucket("0123456789abcdef", PACKAGE, "1.0.2"), 0);
+    }
+
+    @Test
+    public void bucketsAreUniform() {
+        int[] deciles = new int[10];
+        for (int device = 0; device < DEVICES; device++) {
+            double bucket = RolloutScheduler.getBucket(androidId(device), PACKAGE, "1.0.1");
+            assertTrue(bucket >= 0 && bucket < 1);
+            deciles[(int) (bucket * 10)]++;
+        }
+        for (int count : deciles) {
+            // 10 % each, the standard deviation is below 0.1 %
+            assertEquals(DEVICES / 10, count, DEVICES / 100);
+        }
+    }
+
+    @Test
+    public void percentageSelectsThatShareOfDevices() {
+        for (double percentage : new double[]{1, 5, 25, 50}) {
+            int selected = 0;
+            for (int device = 0; device < DEVICES; device++) {
+                if (RolloutScheduler.isInRollout(RolloutScheduler.getBucket(androidId(device), PACKAGE, "1.0.1"),
+                        percentage)) {
+                    selected++;
+                }
+            }
+            assertEquals(DEVICES * percentage / 100, selected, DEVICES / 200.0);
+        }
+    }
+
+    @Test
+    public void percentageBounds() {
+        assertFalse(RolloutScheduler.isInRollout(0, 0));
+        assertTrue(RolloutScheduler.isInRollout(0, 0.001));
+        assertTrue(RolloutScheduler.isInRollout(0.999999, 100));
+        assertFalse(RolloutScheduler.isInRollout(0.25, 25));
+    }
+
+    @Test
+    public void slotsAreSpreadOverTheWindow() {
+        long start = 1639132800000L;
+        long window = 86400000;
+        assertEquals(start, RolloutScheduler.getSlot(0, 50, start, window, 0));
+        assertEquals(start + window / 2, RolloutScheduler.getSlot(0.25, 50, start, window, 0));
+        assertEquals(start + window / 2 + 600000, RolloutScheduler.getSlot(0.25, 50, start, window, 600000));
+        assertTrue(RolloutScheduler.getSlot(0.4999999, 50, start, window, 0) < start + window);
+    }
+
+    @Test
+    public void raisingThePercentageOnlyMovesSlotsForward() {
+        long start = 1639132800000L;
+        long window = 86400000;
+        for (int device = 0; device < 1000; device++) {
+            double bucket = RolloutScheduler.getBucket(androidId(device), PACKAGE, "1.0.1");
+            if (RolloutScheduler.isInRollout(bucket, 10)) {
+                assertTrue(RolloutScheduler.isInRollout(bucket, 50));
+                assertTrue(RolloutScheduler.getSlot(bucket, 50, start, window, 0)
+                        <= RolloutScheduler.getSlot(bucket, 10, start, window, 0));
+            }
+        }
+    }
+
+}
@@ -6,6 +6,22 @@ function emptyFn() {
     //
 }
 
+function addObservers(opt) {
+    if (opt.onDownloadProgress != null) {
+        exec(opt.onDownloadProgress, emptyFn, PLUGIN, 'addProgressObserver');
+    }
+
+    if (opt.onUnzipProgress != null) {
+        exec(opt.onUnzipProgress, emptyFn, PLUGIN, 'addUnzipObserver');
+    }
+}
+
+function getBasicAuth(opt) {
+    if (opt.basicAuth != null && opt.basicAuth.user != null && opt.basicAuth.password != null) {
+        return opt.basicAuth.user + ':' + opt.basicAuth.password;
+    }
+}
+
 module.exports = {
 
     /**
@@ -17,10 +33,28 @@ module.exports = {
         });
     },
 
+    /**
+     * @param {object} opt
+     * @param {string[]=} opt.hosts - Update servers, connections to them are opened in advance
+     * @param {string[]=} opt.certificates - SHA-256 of the certificates an update of the app must be signed with
+     * @param {boolean=} opt.peerMode - Share the update with other devices on the local network
+     * @param {number=} opt.peerPort - Port of the peer server, default: any free port
+     * @returns {Promise<void>}
+     */
+    configure: function (opt) {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'configure', [opt || {}]);
+        });
+    },
+
     /**
      * @param {string} url - Your apk or zip-archive
      * @param {object | undefined} opt - Optional
      * @param {string=} opt.zipPassword
+     * @param {string=} opt.payloadKey - Base64 encoded AES key of an encrypted payload
+     * @param {string=} opt.rolloutUrl - Staggered rollout of the update
+     * @param {string=} opt.digest - SHA-256 of the file, required to fetch it from peers
+     * @param {string[]=} opt.peers - "host:port" of devices that serve the file
      * @param {object=} opt.basicAuth
      * @param {string=} opt.basicAuth.user
      * @param {string=} opt.basicAuth.password
@@ -30,25 +64,92 @@ module.exports = {
      */
     download: function (url, opt) {
         opt = opt || {};
+        addObservers(opt);
 
-        if (opt.onDownloadProgress != null) {
-            exec(opt.onDownloadProgress, emptyFn, PLUGIN, 'addProgressObserver');
-        }
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'download',
+                [url, getBasicAuth(opt), opt.zipPassword, opt.payloadKey, opt.rolloutUrl, opt.digest, opt.peers || []]);
+        });
+    },
 
-        if (opt.onUnzipProgress != null) {
-            exec(opt.onUnzipProgress, emptyFn, PLUGIN, 'addUnzipObserver');
-        }
+    /**
+     * @param {string} url - Your apk or zip-archive
+     * @param {object | undefined} opt - Optional, same as for download() without the progress callbacks
+     * @param {boolean=} opt.unmetered - Only on unmetered networks, default true
+     * @param {boolean=} opt.charging - Only while charging, default false
+     * @param {boolean=} opt.idle - Only while the device is idle, default false
+     * @returns {Promise<boolean>}
+     */
+    schedulePrefetch: function (url, opt) {
+        opt = opt || {};
+        var constraints = {unmetered: opt.unmetered !== false, charging: !!opt.charging, idle: !!opt.idle};
 
-        var basicAuth;
-        if (opt.basicAuth != null && opt.basicAuth.user != null && opt.basicAuth.password != null) {
-            basicAuth = opt.basicAuth.user + ':' + opt.basicAuth.password;
-        }
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'schedulePrefetch',
+                [url, getBasicAuth(opt), opt.zipPassword, opt.payloadKey, opt.rolloutUrl, constraints]);
+        }).then(function (resp) {
+            return resp === 1;
+        });
+    },
+
+    /**
+     * @returns {Promise<void>}
+     */
+    cancelPrefetch: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'cancelPrefetch', []);
+        });
+    },
+
+    /**
+     * @returns {Promise<object>}
+     */
+    getInterruptedDownload: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'getInterruptedDownload', []);
+        });
+    },
+
+    /**
+     * @param {object | undefined} opt - Optional, same as for download()
+     * @returns {Promise<object>}
+     */
+    resumeDownload: function (opt) {
+        opt = opt || {};
+        addObservers(opt);
+
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'resumeDownload', [getBasicAuth(opt), opt.zipPassword, opt.payloadKey]);
+        });
+    },
+
+    /**
+     * @param {string} uri - file:// or content:// uri of your apk or archive, e.g. from a file picker
+     * @param {object | undefined} opt - Optional
+     * @param {string=} opt.zipPassword
+     * @param {string=} opt.digest - SHA-256 of the file
+     * @param {function({progress: number, bytes: number, bytesWritten: number}): void=} opt.onDownloadProgress - Copy progress
+     * @param {function({progress: number, bytes: number, bytesWritten: number}): void=} opt.onUnzipProgress
+     * @returns {Promise<object>}
+     */
+    importUpdate: function (uri, opt) {
+        opt = opt || {};
+        addObservers(opt);
 
         return new Promise(function (resolve, reject) {
-            exec(resolve, reject, PLUGIN, 'download', [url, basicAuth, opt.zipPassword]);
+            exec(resolve, reject, PLUGIN, 'importUpdate', [uri, opt.zipPassword, opt.digest]);
         });
     },
 
+    /**
+     * Stays registered until the page is reloaded. Registering another observer replaces this one.
+     *
+     * @param {function({type: string, state: string=, span: number, parent: number=, time: number}): void} observer
+     */
+    addLifecycleObserver: function (observer) {
+        exec(observer, emptyFn, PLUGIN, 'addLifecycleObserver', []);
+    },
+
     /**
      * @returns {Promise<void>}
      */
@@ -58,6 +159,31 @@ module.exports = {
         });
     },
 
+    /**
+     * @returns {Promise<void>}
+     */
+    pause: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'pause', []);
+        });
+    },
+
+    /**
+     * @param {object | undefined} opt - Optional, the options of download() replace the ones of the paused download.
+     * They are required after an app restart, except for the digest.
+     * @param {function({progress: number, bytes: number, bytesWritten: number}): void=} opt.onDownloadProgress
+     * @param {function({progress: number, bytes: number, bytesWritten: number}): void=} opt.onUnzipProgress
+     * @returns {Promise<object>}
+     */
+    resume: function (opt) {
+        opt = opt || {};
+        addObservers(opt);
+
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'resume', [getBasicAuth(opt), opt.zipPassword, opt.payloadKey]);
+        });
+    },
+
     /**
      * @returns {Promise<object>}
      */
@@ -76,6 +202,131 @@ module.exports = {
         });
     },
 
+    /**
+     * @returns {Promise<object>}
+     */
+    getUpdateTimeline: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'getUpdateTimeline', []);
+        });
+    },
+
+    /**
+     * @returns {Promise<object>}
+     */
+    getMetrics: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'getMetrics', []);
+        });
+    },
+
+    /**
+     * @returns {Promise<void>}
+     */
+    resetMetrics: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'resetMetrics', []);
+        });
+    },
+
+    /**
+     * @param {object[]} items
+     * @param {string} items[].package - Package name of the apk
+     * @param {string} items[].url - Your apk or zip-archive
+     * @param {string[]=} items[].dependsOn - Packages that have to be installed first
+     * @param {string=} items[].zipPassword
+     * @param {string=} items[].payloadKey
+     * @param {object=} items[].basicAuth
+     * @param {object | undefined} opt - Optional
+     * @param {number=} opt.maxParallel - Concurrent downloads, default 2
+     * @param {function(object): void=} opt.onProgress - State and progress of an item
+     * @returns {Promise<object[]>}
+     */
+    downloadQueue: function (items, opt) {
+        opt = opt || {};
+        if (opt.onProgress != null) {
+            exec(opt.onProgress, emptyFn, PLUGIN, 'addQueueObserver');
+        }
+
+        var entries = items.map(function (item) {
+            return {
+                package: item.package,
+                url: item.url,
+                dependsOn: item.dependsOn || [],
+                basicAuth: getBasicAuth(item),
+                zipPassword: item.zipPassword,
+                payloadKey: item.payloadKey
+            };
+        });
+
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'downloadQueue', [entries, opt.maxParallel || 2]);
+        });
+    },
+
+    /**
+     * @returns {Promise<object[]>}
+     */
+    getQueue: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'getQueue', []);
+        });
+    },
+
+    /**
+     * @param {object | undefined} opt - Optional
+     * @param {string=} opt.method - owner (default) or root
+     * @returns {Promise<object[]>}
+     */
+    installQueue: function (opt) {
+        opt = opt || {};
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'installQueue', [opt.method || 'owner']);
+        });
+    },
+
+    /**
+     * @returns {Promise<void>}
+     */
+    resetQueue: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'resetQueue', []);
+        });
+    },
+
+    /**
+     * @param {string} manifestUrl - Manifest of the web assets
+     * @param {object | undefined} opt - Optional
+     * @param {object=} opt.basicAuth
+     * @param {string=} opt.basicAuth.user
+     * @param {string=} opt.basicAuth.password
+     * @returns {Promise<object>}
+     */
+    downloadWebAssets: function (manifestUrl, opt) {
+        opt = opt || {};
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'downloadWebAssets', [manifestUrl, getBasicAuth(opt)]);
+        });
+    },
+
+    /**
+     * @returns {Promise<object>}
+     */
+    getWebAssets: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'getWebAssets', []);
+        });
+    },
+
+    /**
+     * @returns {Promise<void>}
+     */
+    resetWebAssets: function () {
+        return new Promise(function (resolve, reject) {
+            exec(resolve, reject, PLUGIN, 'resetWebAssets', []);
+        });
+    },
+
     /**
      * @returns {Promise<boolean>}
      */
@@ -16,10 +16,30 @@ module.exports = {
         }
     },
 
+    /**
+     * @param {object} opt
+     * @param {string[]=} opt.hosts - Update servers, connections to them are opened in advance
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<void>|void}
+     */
+    configure: function (opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.configure(opt);
+        } else {
+            API.configure(opt).then(success).catch(failure);
+        }
+    },
+
     /**
      * @param {string} url - Your apk or zip-archive
      * @param {object | undefined} opt - Optional
      * @param {string=} opt.zipPassword
+     * @param {string=} opt.payloadKey - Base64 encoded AES key of an encrypted payload
+     * @param {string=} opt.rolloutUrl - Staggered rollout of the update
+     * @param {string=} opt.digest - SHA-256 of the file, required to fetch it from peers
+     * @param {string[]=} opt.peers - "host:port" of devices that serve the file
      * @param {object=} opt.basicAuth
      * @param {string=} opt.basicAuth.user
      * @param {string=} opt.basicAuth.password
@@ -38,6 +58,93 @@ module.exports = {
         }
     },
 
+    /**
+     * @param {string} url - Your apk or zip-archive
+     * @param {object | undefined} opt - Optional, same as for download() without the progress callbacks
+     * @param {boolean=} opt.unmetered - Only on unmetered networks, default true
+     * @param {boolean=} opt.charging - Only while charging, default false
+     * @param {boolean=} opt.idle - Only while the device is idle, default false
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<boolean>|boolean}
+     */
+    schedulePrefetch: function (url, opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.schedulePrefetch(url, opt);
+        } else {
+            API.schedulePrefetch(url, opt).then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<void>|void}
+     */
+    cancelPrefetch: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.cancelPrefetch();
+        } else {
+            API.cancelPrefetch().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|object}
+     */
+    getInterruptedDownload: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.getInterruptedDownload();
+        } else {
+            API.getInterruptedDownload().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {object | undefined} opt - Optional, same as for download()
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|object}
+     */
+    resumeDownload: function (opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.resumeDownload(opt);
+        } else {
+            API.resumeDownload(opt).then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {string} uri - file:// or content:// uri of your apk or archive
+     * @param {object | undefined} opt - Optional, see API.js
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|object}
+     */
+    importUpdate: function (uri, opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.importUpdate(uri, opt);
+        } else {
+            API.importUpdate(uri, opt).then(success).catch(failure);
+        }
+    },
+
+    /**
+     * Stays registered for the lifetime of the app.
+     *
+     * @param {function({type: string, state: string=, span: number, parent: number=, time: number}): void} observer
+     */
+    addLifecycleObserver: function (observer) {
+        API.addLifecycleObserver(observer);
+    },
+
     /**
      * @param {function=} success
      * @param {function=} failure
@@ -52,6 +159,35 @@ module.exports = {
         }
     },
 
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<void>|void}
+     */
+    pause: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.pause();
+        } else {
+            API.pause().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {object | undefined} opt - Optional, same as for download()
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|object}
+     */
+    resume: function (opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.resume(opt);
+        } else {
+            API.resume(opt).then(success).catch(failure);
+        }
+    },
+
     /**
      * @param {function=} success
      * @param {function=} failure
@@ -80,6 +216,157 @@ module.exports = {
         }
     },
 
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|object}
+     */
+    getUpdateTimeline: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.getUpdateTimeline();
+        } else {
+            API.getUpdateTimeline().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|object}
+     */
+    getMetrics: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.getMetrics();
+        } else {
+            API.getMetrics().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<void>|void}
+     */
+    resetMetrics: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.resetMetrics();
+        } else {
+            API.resetMetrics().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {object[]} items - See API.downloadQueue
+     * @param {object | undefined} opt - Optional
+     * @param {number=} opt.maxParallel - Concurrent downloads, default 2
+     * @param {function(object): void=} opt.onProgress - State and progress of an item
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object[]>|object[]}
+     */
+    downloadQueue: function (items, opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.downloadQueue(items, opt);
+        } else {
+            API.downloadQueue(items, opt).then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object[]>|object[]}
+     */
+    getQueue: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.getQueue();
+        } else {
+            API.getQueue().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {object | undefined} opt - Optional
+     * @param {string=} opt.method - owner (default) or root
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object[]>|object[]}
+     */
+    installQueue: function (opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.installQueue(opt);
+        } else {
+            API.installQueue(opt).then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<void>|void}
+     */
+    resetQueue: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.resetQueue();
+        } else {
+            API.resetQueue().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {string} manifestUrl - Manifest of the web assets
+     * @param {object | undefined} opt - Optional
+     * @param {object=} opt.basicAuth
+     * @param {string=} opt.basicAuth.user
+     * @param {string=} opt.basicAuth.password
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|void}
+     */
+    downloadWebAssets: function (manifestUrl, opt, success, failure) {
+        if (success == null && failure == null) {
+            return API.downloadWebAssets(manifestUrl, opt);
+        } else {
+            API.downloadWebAssets(manifestUrl, opt).then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<object>|void}
+     */
+    getWebAssets: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.getWebAssets();
+        } else {
+            API.getWebAssets().then(success).catch(failure);
+        }
+    },
+
+    /**
+     * @param {function=} success
+     * @param {function=} failure
+     *
+     * @returns {Promise<void>|void}
+     */
+    resetWebAssets: function (success, failure) {
+        if (success == null && failure == null) {
+            return API.resetWebAssets();
+        } else {
+            API.resetWebAssets().then(success).catch(failure);
+        }
+    },
+
     /**
      * @param {function=} success
      * @param {function=} failure